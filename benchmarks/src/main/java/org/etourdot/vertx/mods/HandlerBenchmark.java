@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of a handler, called directly without the event bus.<p>
+ * Requests are processed on the benchmark threads, as by a worker verticle without executors. Documents
+ * are copies of the books of <code>books_dtd_ok.xml</code>: <code>small</code> is the test document,
+ * <code>medium</code> and <code>large</code> repeat its books 100 and 2000 times (about 250KB and 5MB).
+ * With a <code>warm</code> cache every request reuses the same program, with a <code>cold</code> cache
+ * every request has a new program and is compiled. <code>single</code> runs on one thread and
+ * <code>contended</code> on four threads sharing the handler and its caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class HandlerBenchmark {
+
+    static final String BOOKS = "org/etourdot/vertx/mods/books_dtd_ok.xml";
+    static final String BOOKS_XSD = "org/etourdot/vertx/mods/books.xsd";
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    @Param({"warm", "cold"})
+    public String cache;
+
+    private final AtomicLong programs = new AtomicLong();
+    private SharedResources resources;
+    private XmlDefaultHandler handler;
+    String document;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        resources = SharedResources.acquire(new JsonObject());
+        handler = newHandler(resources);
+        document = books(copies(size));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        resources.release();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object single() {
+        return process();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object contended() {
+        return process();
+    }
+
+    abstract XmlDefaultHandler newHandler(SharedResources resources);
+
+    /**
+     * @param comment comment to add to the program of the request, unique with a cold cache
+     */
+    abstract JsonObject request(String comment);
+
+    private Object process() {
+        final String comment = "cold".equals(cache) ? String.valueOf(programs.incrementAndGet()) : "";
+        final StubMessage stub = new StubMessage(request(comment));
+        handler.handle(stub.message);
+        if (stub.reply instanceof JsonObject && !"ok".equals(((JsonObject) stub.reply).getString("status"))) {
+            throw new IllegalStateException(((JsonObject) stub.reply).encode());
+        }
+        return stub.reply;
+    }
+
+    private static int copies(String size) {
+        switch (size) {
+            case "small":
+                return 1;
+            case "medium":
+                return 100;
+            case "large":
+                return 2000;
+            default:
+                throw new IllegalArgumentException("unknown size " + size);
+        }
+    }
+
+    /**
+     * @return the test document without its doctype, its books repeated <code>copies</code> times
+     */
+    static String books(int copies) throws IOException {
+        final String xml = resource(BOOKS).replaceFirst("<!DOCTYPE[^>]*>", "");
+        final int start = xml.indexOf("<BOOKS>") + "<BOOKS>".length();
+        final int end = xml.indexOf("</BOOKS>");
+        final String books = xml.substring(start, end);
+        final StringBuilder builder = new StringBuilder(xml.length() + books.length() * (copies - 1));
+        builder.append(xml, 0, start);
+        for (int i = 0; i < copies; i++) {
+            builder.append(books);
+        }
+        return builder.append(xml, end, xml.length()).toString();
+    }
+
+    static String resource(String name) throws IOException {
+        return Resources.toString(Resources.getResource(name), Charsets.UTF_8);
+    }
+
+    /**
+     * Message of a request, keeping its reply.
+     */
+    private static final class StubMessage implements InvocationHandler {
+        private final JsonObject body;
+        private final Message<JsonObject> message;
+        private volatile Object reply;
+
+        @SuppressWarnings("unchecked")
+        private StubMessage(JsonObject body) {
+            this.body = body;
+            message = (Message<JsonObject>) Proxy.newProxyInstance(Message.class.getClassLoader(),
+                    new Class<?>[]{Message.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "body":
+                    return body;
+                case "reply":
+                    reply = args == null ? null : args[0];
+                    return null;
+                case "fail":
+                    reply = new JsonObject().putString("status", "error").putString("message", (String) args[1]);
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "StubMessage" + body.encode();
+                default:
+                    return null;
+            }
+        }
+    }
+}
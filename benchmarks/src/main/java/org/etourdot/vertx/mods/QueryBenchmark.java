@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * XQueries grouping the titles of the books by category.
+ */
+public class QueryBenchmark extends HandlerBenchmark {
+
+    static final String QUERY = "<categories>{ for $cat in distinct-values(//ITEM/@CAT) order by $cat "
+            + "return <category code=\"{$cat}\" count=\"{count(//ITEM[@CAT = $cat])}\">"
+            + "{ //ITEM[@CAT = $cat]/TITLE }</category> }</categories>";
+
+    @Override
+    XmlDefaultHandler newHandler(SharedResources resources) {
+        return new XmlQueryHandler(resources, null, null, null);
+    }
+
+    @Override
+    JsonObject request(String comment) {
+        return new JsonObject()
+                .putString(XmlQueryHandler.XML, document)
+                .putString(XmlQueryHandler.QUERY, "(:" + comment + ":) " + QUERY);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Transforms of the books into an html table sorted by title.
+ */
+public class TransformBenchmark extends HandlerBenchmark {
+
+    static final String XSL = "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:template match=\"/\"><table><xsl:for-each select=\"//ITEM\">"
+            + "<xsl:sort select=\"TITLE\"/><tr><td><xsl:value-of select=\"TITLE\"/></td>"
+            + "<td><xsl:value-of select=\"AUTHOR\"/></td><td><xsl:value-of select=\"PRICE * QUANTITY\"/></td></tr>"
+            + "</xsl:for-each></table></xsl:template></xsl:stylesheet>";
+
+    @Override
+    XmlDefaultHandler newHandler(SharedResources resources) {
+        return new XmlTransformHandler(resources, null, null, null);
+    }
+
+    @Override
+    JsonObject request(String comment) {
+        return new JsonObject()
+                .putString(XmlTransformHandler.XML, document)
+                .putString(XmlTransformHandler.XSL, XSL + "<!--" + comment + "-->");
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+
+/**
+ * Validations of the books against <code>books.xsd</code>.
+ */
+public class ValidationBenchmark extends HandlerBenchmark {
+
+    private String xsd;
+
+    @Override
+    XmlDefaultHandler newHandler(SharedResources resources) {
+        try {
+            xsd = resource(BOOKS_XSD);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new XmlValidationHandler(resources, null, null);
+    }
+
+    @Override
+    JsonObject request(String comment) {
+        return new JsonObject()
+                .putString(XmlValidationHandler.XML, document)
+                .putString(XmlValidationHandler.XSD, xsd + "<!--" + comment + "-->");
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * XPaths selecting the authors of the paperback books.
+ */
+public class XPathBenchmark extends HandlerBenchmark {
+
+    static final String XPATH = "//ITEM[@CAT = 'P']/AUTHOR/text()";
+
+    @Override
+    XmlDefaultHandler newHandler(SharedResources resources) {
+        return new XmlXPathHandler(resources, null, null, null);
+    }
+
+    @Override
+    JsonObject request(String comment) {
+        return new JsonObject()
+                .putString(XmlXPathHandler.XML, document)
+                .putString(XmlXPathHandler.XPATH, "(:" + comment + ":) " + XPATH);
+    }
+}
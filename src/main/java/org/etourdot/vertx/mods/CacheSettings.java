@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizing and expiration settings of a module cache, read from a config object:<p>
+ * <code>{ "max_entries": n, "max_weight": n, "expire_after_write": s, "expire_after_access": s,
+ * "soft_values": b }</code><p>
+ * A cache is bounded either by <code>max_entries</code> or by <code>max_weight</code>: giving both is a
+ * config error, giving <code>max_entries</code> replaces a default maximum weight. Durations are in seconds,
+ * 0 means no expiration.
+ */
+final class CacheSettings {
+
+    static final String MAX_ENTRIES = "max_entries";
+    static final String MAX_WEIGHT = "max_weight";
+    static final String EXPIRE_AFTER_WRITE = "expire_after_write";
+    static final String EXPIRE_AFTER_ACCESS = "expire_after_access";
+    static final String SOFT_VALUES = "soft_values";
+
+    private final long maxEntries;
+    private final long maxWeight;
+    private final long expireAfterWrite;
+    private final long expireAfterAccess;
+    private final boolean softValues;
+
+    CacheSettings(JsonObject config, long defaultMaxEntries, long defaultExpireAfterAccess) {
+        this(config, defaultMaxEntries, 0, defaultExpireAfterAccess);
+    }
+
+    /**
+     * @throws IllegalArgumentException if both <code>max_entries</code> and <code>max_weight</code> are given
+     */
+    CacheSettings(JsonObject config, long defaultMaxEntries, long defaultMaxWeight, long defaultExpireAfterAccess) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        if (config.containsField(MAX_ENTRIES) && config.containsField(MAX_WEIGHT)) {
+            throw new IllegalArgumentException("max_entries either max_weight must be specified");
+        }
+        maxEntries = config.getLong(MAX_ENTRIES, defaultMaxEntries);
+        maxWeight = config.containsField(MAX_ENTRIES) ? 0 : config.getLong(MAX_WEIGHT, defaultMaxWeight);
+        expireAfterWrite = config.getLong(EXPIRE_AFTER_WRITE, 0);
+        expireAfterAccess = config.getLong(EXPIRE_AFTER_ACCESS, defaultExpireAfterAccess);
+        softValues = config.getBoolean(SOFT_VALUES, false);
+    }
+
+    boolean isWeighted() {
+        return maxWeight > 0;
+    }
+
+    /**
+     * Creates a cache builder with these settings, <code>weigher</code> is only used when a
+     * maximum weight is configured.
+     */
+    <K, V> CacheBuilder<K, V> newBuilder(Weigher<? super K, ? super V> weigher,
+                                         RemovalListener<? super K, ? super V> removalListener) {
+        CacheBuilder<K, V> builder = CacheBuilder.newBuilder().recordStats().removalListener(removalListener);
+        if (isWeighted()) {
+            builder = builder.maximumWeight(maxWeight).weigher(weigher);
+        } else if (maxEntries > 0) {
+            builder = builder.maximumSize(maxEntries);
+        }
+        if (expireAfterWrite > 0) {
+            builder = builder.expireAfterWrite(expireAfterWrite, TimeUnit.SECONDS);
+        }
+        if (expireAfterAccess > 0) {
+            builder = builder.expireAfterAccess(expireAfterAccess, TimeUnit.SECONDS);
+        }
+        if (softValues) {
+            builder = builder.softValues();
+        }
+        return builder;
+    }
+
+    /**
+     * @return the settings, with the bound of the cache only: <code>max_weight</code> or <code>max_entries</code>
+     */
+    JsonObject toJson() {
+        final JsonObject json = isWeighted() ? new JsonObject().putNumber(MAX_WEIGHT, maxWeight)
+                : new JsonObject().putNumber(MAX_ENTRIES, maxEntries);
+        return json
+                .putNumber(EXPIRE_AFTER_WRITE, expireAfterWrite)
+                .putNumber(EXPIRE_AFTER_ACCESS, expireAfterAccess)
+                .putBoolean(SOFT_VALUES, softValues);
+    }
+}
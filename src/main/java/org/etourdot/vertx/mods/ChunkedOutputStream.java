@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.OutputStream;
+
+/**
+ * OutputStream sending what is written as a sequence of Buffer messages to an address.<p>
+ * Each chunk is a binary envelope (see {@link XmlRequest}) whose header is <code>{"seq": n}</code>,
+ * the sequence ends with an empty chunk whose header is <code>{"seq": n, "last": true}</code>, or
+ * <code>{"seq": n, "last": true, "error": message}</code> when the result is incomplete.<p>
+ * Chunks are sent without flow control: only the chunk being filled is held here, so memory is bounded on
+ * the producer side, but sent chunks are queued by the event bus until the consumer handles them.
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    static final String SEQ = "seq";
+    static final String LAST = "last";
+    static final String ERROR = "error";
+
+    private final EventBus eventBus;
+    private final String address;
+    private final int chunkSize;
+    private Buffer chunk;
+    private int headerLength;
+    private int seq;
+    private long bytes;
+    private boolean closed;
+
+    ChunkedOutputStream(EventBus eventBus, String address, int chunkSize) {
+        this.eventBus = eventBus;
+        this.address = address;
+        this.chunkSize = chunkSize;
+        newChunk();
+    }
+
+    @Override
+    public void write(int b) {
+        chunk.appendByte((byte) b);
+        bytes++;
+        if (chunk.length() - headerLength >= chunkSize) {
+            sendChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            final int count = Math.min(len, chunkSize - (chunk.length() - headerLength));
+            chunk.appendBytes(b, off, count);
+            bytes += count;
+            off += count;
+            len -= count;
+            if (chunk.length() - headerLength >= chunkSize) {
+                sendChunk();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        // chunks are only sent when full, so that their count stays predictable
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (chunk.length() > headerLength) {
+            sendChunk();
+        }
+        eventBus.send(address, XmlRequest.envelopeHeader(new JsonObject().putNumber(SEQ, seq).putBoolean(LAST, true)));
+        seq++;
+    }
+
+    /**
+     * Ends an incomplete sequence: the pending chunk is dropped and the last chunk carries the error.
+     */
+    void abort(String error) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        eventBus.send(address, XmlRequest.envelopeHeader(new JsonObject().putNumber(SEQ, seq).putBoolean(LAST, true)
+                .putString(ERROR, error)));
+        seq++;
+    }
+
+    /**
+     * @return number of chunks sent, including the last empty one
+     */
+    int getChunks() {
+        return seq;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    private void sendChunk() {
+        eventBus.send(address, chunk);
+        seq++;
+        newChunk();
+    }
+
+    private void newChunk() {
+        chunk = XmlRequest.envelopeHeader(new JsonObject().putNumber(SEQ, seq));
+        headerLength = chunk.length();
+    }
+}
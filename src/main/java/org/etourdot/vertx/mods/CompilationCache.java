@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.HashCode;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compilation cache shared by every handler.<p>
+ * Entries are evaluator pools keyed by {@link CompilationKey}, so equivalent requests on any
+ * handler hit the same compiled executable. When a maximum weight is configured, entries are
+ * weighed by an estimate of the compiled program size, derived from the source length.
+ */
+class CompilationCache {
+
+    /**
+     * Estimated size in bytes of a compiled program whose source length is unknown (url sources).
+     */
+    static final int UNKNOWN_SOURCE_WEIGHT = 64 * 1024;
+    private static final int BASE_WEIGHT = 1024;
+    private static final int WEIGHT_PER_CHAR = 16;
+
+    private final int poolSize;
+    private final CacheSettings settings;
+    private final EvictionCounter<HashCode, Entry> evictions;
+    private final Cache<HashCode, Entry> cache;
+
+    CompilationCache(int poolSize, CacheSettings settings) {
+        this.poolSize = poolSize;
+        this.settings = settings;
+        evictions = new EvictionCounter<>();
+        cache = settings.newBuilder(new Weigher<HashCode, Entry>() {
+            @Override
+            public int weigh(HashCode key, Entry entry) {
+                return entry.weight;
+            }
+        }, evictions).build();
+    }
+
+    int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @param source source text of the program, null when it is given by url
+     */
+    @SuppressWarnings("unchecked")
+    <E, T> EvaluatorPool<E, T> get(HashCode key, final String source,
+                                   final Callable<EvaluatorPool<E, T>> loader) throws ExecutionException {
+        return (EvaluatorPool<E, T>) cache.get(key, new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                return new Entry(loader.call(), estimateWeight(source));
+            }
+        }).pool;
+    }
+
+    /**
+     * @return true when the program is already compiled, without counting a hit or a miss
+     */
+    boolean contains(HashCode key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    JsonObject stats() {
+        final CacheStats stats = cache.stats();
+        return new JsonObject()
+                .putNumber("size", cache.size())
+                .putNumber("hits", stats.hitCount())
+                .putNumber("misses", stats.missCount())
+                .putNumber("hit_rate", stats.hitRate())
+                .putNumber("load_successes", stats.loadSuccessCount())
+                .putNumber("load_failures", stats.loadExceptionCount())
+                .putNumber("total_load_time_ms", TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()))
+                .putNumber("average_load_time_ms", stats.averageLoadPenalty() / 1000000d)
+                .putObject("evictions", evictions.toJson())
+                .putObject("settings", settings.toJson());
+    }
+
+    static int estimateWeight(String source) {
+        if (source == null) {
+            return UNKNOWN_SOURCE_WEIGHT;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, BASE_WEIGHT + (long) WEIGHT_PER_CHAR * source.length());
+    }
+
+    private static final class Entry {
+        private final EvaluatorPool<?, ?> pool;
+        private final int weight;
+
+        private Entry(EvaluatorPool<?, ?> pool, int weight) {
+            this.pool = pool;
+            this.weight = weight;
+        }
+    }
+}
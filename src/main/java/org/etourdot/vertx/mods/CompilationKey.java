@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Content-addressed key of a compiled stylesheet, xquery, xpath or schema.<p>
+ * The key is a SHA-256 digest of the program kind, its source (text or url) and everything in
+ * the compilation context that could change the compiled program. Every field is length-prefixed
+ * so two different contexts can never produce the same byte stream.
+ */
+final class CompilationKey {
+
+    static final String XSLT = "xslt";
+    static final String XQUERY = "xquery";
+    static final String XPATH = "xpath";
+    static final String XSD = "xsd";
+
+    private final Hasher hasher;
+
+    private CompilationKey(String kind) {
+        hasher = Hashing.sha256().newHasher();
+        putField("kind", kind);
+    }
+
+    static CompilationKey of(String kind) {
+        return new CompilationKey(kind);
+    }
+
+    CompilationKey source(String source) {
+        return putField("source", source);
+    }
+
+    CompilationKey url(String url) {
+        return putField("url", url);
+    }
+
+    CompilationKey baseUri(String baseUri) {
+        return putField("base_uri", baseUri);
+    }
+
+    /**
+     * Namespace bindings, sorted by prefix.
+     */
+    CompilationKey namespaces(JsonObject namespaces) {
+        putValue("namespaces");
+        hasher.putInt(namespaces == null ? -1 : namespaces.size());
+        if (namespaces != null) {
+            for (String prefix : new TreeSet<>(namespaces.getFieldNames())) {
+                putValue(prefix);
+                putValue(namespaces.getString(prefix));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Names of declared parameters (only names matter at compile time), sorted.
+     */
+    CompilationKey parameters(JsonArray params) {
+        final SortedSet<String> names = XmlDefaultHandler.paramNames(params);
+        putValue("parameters");
+        hasher.putInt(names.size());
+        for (String name : names) {
+            putValue(name);
+        }
+        return this;
+    }
+
+    /**
+     * Output properties, sorted by name.
+     */
+    CompilationKey outputProperties(JsonObject properties) {
+        putValue("output_properties");
+        hasher.putInt(properties == null ? -1 : properties.size());
+        if (properties != null) {
+            for (String name : new TreeSet<>(properties.getFieldNames())) {
+                putValue(name);
+                putValue(String.valueOf(properties.getValue(name)));
+            }
+        }
+        return this;
+    }
+
+    HashCode hash() {
+        return hasher.hash();
+    }
+
+    private CompilationKey putField(String name, String value) {
+        putValue(name);
+        putValue(value);
+        return this;
+    }
+
+    private void putValue(String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putString(value, Charsets.UTF_8);
+        }
+    }
+}
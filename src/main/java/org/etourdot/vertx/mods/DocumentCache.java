@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.io.CountingInputStream;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Cache of parsed documents given by <code>url_xml</code>, shared by every handler.<p>
+ * Entries are keyed by url and weighed by an estimate of the tree size, derived from the document
+ * length, so the cache is bounded by a memory budget and evicts the least recently used documents.
+ * Once <code>revalidate_after</code> seconds (60 by default, 0 to check on every use) have elapsed since an
+ * entry was fetched or checked, it is revalidated before use: by modification time for <code>file:</code>
+ * urls, by a conditional request (ETag and Last-Modified) for http urls and by the last modification date
+ * for other urls. Connections time out after <code>timeout_ms</code>, the <code>fetch</code> one by default.
+ */
+class DocumentCache {
+
+    static final String REVALIDATE_AFTER = "revalidate_after";
+    static final long DEFAULT_REVALIDATE_AFTER = 60;
+    static final String TIMEOUT = ResourceFetcher.TIMEOUT;
+    static final long DEFAULT_MAX_WEIGHT = 64 * 1024 * 1024;
+    private static final int BASE_WEIGHT = 1024;
+    private static final int WEIGHT_PER_BYTE = 4;
+
+    private final TreeBuilders treeBuilders;
+    private final CacheSettings settings;
+    private final long revalidateAfter;
+    private final int timeout;
+    private final EvictionCounter<String, Entry> evictions;
+    private final Cache<String, Entry> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * @param defaultTimeout connect and read timeout in ms of documents without <code>timeout_ms</code>
+     */
+    DocumentCache(TreeBuilders treeBuilders, JsonObject config, long defaultTimeout) {
+        this.treeBuilders = treeBuilders;
+        settings = new CacheSettings(config, 100, DEFAULT_MAX_WEIGHT, 0);
+        revalidateAfter = TimeUnit.SECONDS.toMillis(config.getLong(REVALIDATE_AFTER, DEFAULT_REVALIDATE_AFTER));
+        timeout = (int) Math.min(Integer.MAX_VALUE, config.getLong(TIMEOUT, defaultTimeout));
+        evictions = new EvictionCounter<>();
+        cache = settings.newBuilder(new Weigher<String, Entry>() {
+            @Override
+            public int weigh(String url, Entry entry) {
+                return entry.weight;
+            }
+        }, evictions).build();
+    }
+
+    /**
+     * @return true if the document of the url can be cached: its url is absolute and can be revalidated.
+     * Other urls, e.g. relative ones resolved by the parser, are left to the parser
+     */
+    static boolean accepts(String url) {
+        if (url == null) {
+            return false;
+        }
+        try {
+            final URI uri = new URI(url);
+            if (!uri.isAbsolute() || uri.isOpaque()) {
+                return false;
+            }
+            uri.toURL();
+            return true;
+        } catch (URISyntaxException | MalformedURLException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the parsed document of an url, from the cache when it is still valid. Concurrent misses of an
+     * url share a single parse.
+     * @param url url accepted by {@link #accepts}
+     */
+    XdmNode get(final String url) throws SaxonApiException {
+        final Entry entry = cache.getIfPresent(url);
+        final long now = System.currentTimeMillis();
+        if (entry == null) {
+            return miss(url, now);
+        }
+        if (now - entry.checkedAt < revalidateAfter) {
+            hits.incrementAndGet();
+            return entry.document;
+        }
+        try {
+            final URL location = new URL(url);
+            if ("file".equals(location.getProtocol())) {
+                final long lastModified = new File(location.toURI()).lastModified();
+                if (lastModified != 0 && lastModified == entry.lastModified) {
+                    return revalidated(entry, now);
+                }
+                return reload(url, open(location), null, lastModified, now);
+            }
+            final URLConnection connection = open(location);
+            if (entry.etag != null) {
+                connection.setRequestProperty("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != 0) {
+                connection.setIfModifiedSince(entry.lastModified);
+            }
+            if (connection instanceof HttpURLConnection) {
+                if (((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return revalidated(entry, now);
+                }
+            } else if (entry.lastModified != 0 && connection.getLastModified() == entry.lastModified) {
+                connection.getInputStream().close();
+                return revalidated(entry, now);
+            }
+            return reload(url, connection, connection.getHeaderField("ETag"), connection.getLastModified(), now);
+        } catch (IOException | URISyntaxException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    JsonObject stats() {
+        return new JsonObject()
+                .putNumber("size", cache.size())
+                .putNumber("weight", weight())
+                .putNumber("hits", hits.get())
+                .putNumber("misses", misses.get())
+                .putNumber("revalidations", revalidations.get())
+                .putNumber("reloads", reloads.get())
+                .putObject("evictions", evictions.toJson())
+                .putObject("settings", settings.toJson()
+                        .putNumber(REVALIDATE_AFTER, TimeUnit.MILLISECONDS.toSeconds(revalidateAfter))
+                        .putNumber(TIMEOUT, timeout));
+    }
+
+    private long weight() {
+        long weight = 0;
+        for (Entry entry : cache.asMap().values()) {
+            weight += entry.weight;
+        }
+        return weight;
+    }
+
+    private XdmNode revalidated(Entry entry, long now) {
+        entry.checkedAt = now;
+        revalidations.incrementAndGet();
+        return entry.document;
+    }
+
+    private XdmNode miss(final String url, final long now) throws SaxonApiException {
+        final AtomicBoolean loaded = new AtomicBoolean();
+        final Entry entry;
+        try {
+            entry = cache.get(url, new Callable<Entry>() {
+                @Override
+                public Entry call() throws IOException, URISyntaxException, SaxonApiException {
+                    loaded.set(true);
+                    misses.incrementAndGet();
+                    final URL location = new URL(url);
+                    final URLConnection connection = open(location);
+                    if ("file".equals(location.getProtocol())) {
+                        return load(url, connection, null, new File(location.toURI()).lastModified(), now);
+                    }
+                    return load(url, connection, connection.getHeaderField("ETag"), connection.getLastModified(),
+                            now);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof SaxonApiException
+                    ? (SaxonApiException) e.getCause() : new SaxonApiException(e.getCause());
+        }
+        if (!loaded.get()) {
+            // parsed by a concurrent miss
+            hits.incrementAndGet();
+        }
+        return entry.document;
+    }
+
+    private XdmNode reload(String url, URLConnection connection, String etag, long lastModified, long now)
+            throws IOException, SaxonApiException {
+        reloads.incrementAndGet();
+        final Entry entry = load(url, connection, etag, lastModified, now);
+        cache.put(url, entry);
+        return entry.document;
+    }
+
+    private Entry load(String url, URLConnection connection, String etag, long lastModified, long now)
+            throws IOException, SaxonApiException {
+        final XdmNode document;
+        final long length;
+        try (CountingInputStream input = new CountingInputStream(connection.getInputStream())) {
+            document = treeBuilders.get(null).build(new StreamSource(input, url));
+            length = input.getCount();
+        }
+        return new Entry(document, etag, lastModified, now,
+                (int) Math.min(Integer.MAX_VALUE, BASE_WEIGHT + WEIGHT_PER_BYTE * length));
+    }
+
+    private URLConnection open(URL location) throws IOException {
+        final URLConnection connection = location.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        return connection;
+    }
+
+    private static final class Entry {
+        private final XdmNode document;
+        private final String etag;
+        private final long lastModified;
+        private final int weight;
+        private volatile long checkedAt;
+
+        private Entry(XdmNode document, String etag, long lastModified, long checkedAt, int weight) {
+            this.document = document;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+            this.weight = weight;
+        }
+    }
+}
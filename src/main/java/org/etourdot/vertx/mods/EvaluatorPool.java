@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import net.sf.saxon.query.DynamicQueryContext;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.StringValue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+/**
+ * Bounded pool of loaded evaluators for one compiled executable.<p>
+ * Executables are thread-safe and shared, loaded evaluators are not: a request borrows an
+ * evaluator, uses it, then releases it. At most <code>size</code> evaluators are in use at the same
+ * time, a request borrowing an evaluator when all of them are in use waits for one to be released.
+ */
+abstract class EvaluatorPool<E, T> {
+
+    /**
+     * Order in which a request borrowing from several pools at once takes them, see {@link #borrow(int)}.
+     */
+    static final Comparator<EvaluatorPool<?, ?>> ORDER = new Comparator<EvaluatorPool<?, ?>>() {
+        @Override
+        public int compare(EvaluatorPool<?, ?> pool1, EvaluatorPool<?, ?> pool2) {
+            return Long.compare(pool1.id, pool2.id);
+        }
+    };
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final long id = IDS.incrementAndGet();
+    private final E executable;
+    private final int size;
+    private final Semaphore permits;
+    private final BlockingQueue<T> idle;
+
+    EvaluatorPool(E executable, int size) {
+        this.executable = executable;
+        this.size = Math.max(1, size);
+        this.permits = new Semaphore(this.size, true);
+        this.idle = new ArrayBlockingQueue<>(this.size);
+    }
+
+    E getExecutable() {
+        return executable;
+    }
+
+    /**
+     * @throws SaxonApiException if the request is interrupted while waiting for an evaluator
+     */
+    T borrow() throws SaxonApiException {
+        acquire(1);
+        try {
+            return take();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows <code>count</code> evaluators at once, so that concurrent requests borrowing several of them
+     * can't wait for each other. A request borrowing from several pools takes them in {@link #ORDER}.
+     * Borrowing more than <code>size</code> evaluators takes the whole pool and loads the extra ones.
+     *
+     * @throws SaxonApiException if the request is interrupted while waiting for the evaluators
+     */
+    List<T> borrow(int count) throws SaxonApiException {
+        acquire(Math.min(count, size));
+        final List<T> evaluators = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                evaluators.add(take());
+            }
+            return evaluators;
+        } catch (RuntimeException e) {
+            permits.release(Math.min(count, size));
+            throw e;
+        }
+    }
+
+    void release(T evaluator) {
+        reset(evaluator);
+        idle.offer(evaluator);
+        permits.release();
+    }
+
+    /**
+     * Releases evaluators borrowed with {@link #borrow(int)}.
+     */
+    void release(List<T> evaluators) {
+        for (T evaluator : evaluators) {
+            reset(evaluator);
+            idle.offer(evaluator);
+        }
+        permits.release(Math.min(evaluators.size(), size));
+    }
+
+    private void acquire(int count) throws SaxonApiException {
+        try {
+            permits.acquire(count);
+        } catch (InterruptedException e) {
+            // interrupted by the deadline of the request
+            Thread.currentThread().interrupt();
+            throw new SaxonApiException("interrupted while waiting for an evaluator");
+        }
+    }
+
+    private T take() {
+        final T evaluator = idle.poll();
+        return evaluator != null ? evaluator : load(executable);
+    }
+
+    protected abstract T load(E executable);
+
+    protected abstract void reset(T evaluator);
+
+    static EvaluatorPool<XsltExecutable, XsltTransformer> of(XsltExecutable executable, int size) {
+        return new EvaluatorPool<XsltExecutable, XsltTransformer>(executable, size) {
+            @Override
+            protected XsltTransformer load(XsltExecutable executable) {
+                return executable.load();
+            }
+
+            @Override
+            protected void reset(XsltTransformer transformer) {
+                // drops the parameters, the initial context item and the context of global variables
+                transformer.getUnderlyingController().reset();
+                // the transformer keeps its own reference to the last document
+                transformer.setInitialContextNode(null);
+                transformer.setDestination(null);
+            }
+        };
+    }
+
+    static EvaluatorPool<XQueryExecutable, XQueryEvaluator> of(XQueryExecutable executable, int size) {
+        return new EvaluatorPool<XQueryExecutable, XQueryEvaluator>(executable, size) {
+            @Override
+            protected XQueryEvaluator load(XQueryExecutable executable) {
+                return executable.load();
+            }
+
+            @Override
+            protected void reset(XQueryEvaluator evaluator) {
+                final DynamicQueryContext context = evaluator.getUnderlyingQueryContext();
+                context.clearParameters();
+                // the context item can't be unset, don't keep last document alive while idle
+                context.setContextItem(StringValue.EMPTY_STRING);
+                evaluator.setTraceListener(null);
+                evaluator.setDestination(null);
+            }
+        };
+    }
+
+    static EvaluatorPool<XPathExecutable, XPathSelector> of(XPathExecutable executable, int size) {
+        return new EvaluatorPool<XPathExecutable, XPathSelector>(executable, size) {
+            @Override
+            protected XPathSelector load(XPathExecutable executable) {
+                return executable.load();
+            }
+
+            @Override
+            protected void reset(XPathSelector selector) {
+                try {
+                    // don't keep last document alive while idle
+                    selector.getUnderlyingXPathContext().setContextItem(null);
+                } catch (XPathException e) {
+                    // context is set again before next evaluation
+                }
+            }
+        };
+    }
+
+    static EvaluatorPool<Schema, Validator> of(Schema schema, int size) {
+        return new EvaluatorPool<Schema, Validator>(schema, size) {
+            @Override
+            protected Validator load(Schema schema) {
+                return schema.newValidator();
+            }
+
+            @Override
+            protected void reset(Validator validator) {
+                validator.reset();
+            }
+        };
+    }
+}
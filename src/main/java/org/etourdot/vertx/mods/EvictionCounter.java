@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts cache evictions by cause (size or weight, expiration, garbage collection of soft values).
+ */
+class EvictionCounter<K, V> implements RemovalListener<K, V> {
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong collected = new AtomicLong();
+
+    @Override
+    public void onRemoval(RemovalNotification<K, V> notification) {
+        switch (notification.getCause()) {
+            case SIZE:
+                size.incrementAndGet();
+                break;
+            case EXPIRED:
+                expired.incrementAndGet();
+                break;
+            case COLLECTED:
+                collected.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+    }
+
+    JsonObject toJson() {
+        return new JsonObject()
+                .putNumber("size", size.get())
+                .putNumber("expired", expired.get())
+                .putNumber("collected", collected.get());
+    }
+}
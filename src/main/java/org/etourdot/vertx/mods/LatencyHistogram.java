@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power of two buckets, from 1 microsecond to about 36 minutes.<p>
+ * Percentiles are reported as the upper bound of the bucket holding them, so they are overestimated
+ * by at most a factor of two.
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        // bucket i holds durations up to 2^i microseconds
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, micros - 1)));
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    JsonObject toJson() {
+        final long[] snapshot = new long[BUCKETS];
+        long snapshotCount = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            snapshotCount += snapshot[i];
+        }
+        final JsonObject buckets = new JsonObject();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] > 0) {
+                buckets.putNumber(String.valueOf(upperBound(i)), snapshot[i]);
+            }
+        }
+        final long totalNanos = total.get();
+        return new JsonObject()
+                .putNumber("count", snapshotCount)
+                .putNumber("total_ms", totalNanos / 1000000d)
+                .putNumber("mean_ms", snapshotCount == 0 ? 0 : totalNanos / 1000000d / snapshotCount)
+                .putNumber("max_ms", max.get() / 1000000d)
+                .putNumber("p50_ms", percentile(snapshot, snapshotCount, 0.5))
+                .putNumber("p90_ms", percentile(snapshot, snapshotCount, 0.9))
+                .putNumber("p99_ms", percentile(snapshot, snapshotCount, 0.99))
+                .putObject("buckets_ms", buckets);
+    }
+
+    private static double percentile(long[] snapshot, long snapshotCount, double percentile) {
+        if (snapshotCount == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(percentile * snapshotCount);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * @return the upper bound in milliseconds of a bucket
+     */
+    private static double upperBound(int bucket) {
+        return (1L << bucket) / 1000d;
+    }
+}
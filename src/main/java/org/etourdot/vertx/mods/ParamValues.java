@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.base.Strings;
+
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.s9api.ItemType;
+import net.sf.saxon.s9api.ItemTypeFactory;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Values of the <code>params</code> of stylesheets, xqueries and xpaths, typed from their JSON values:<p>
+ * <ul>
+ * <li>a string is an <code>xs:string</code>, a boolean an <code>xs:boolean</code>, an integral number an
+ * <code>xs:integer</code>, another number an <code>xs:double</code> and null the empty sequence</li>
+ * <li>an array is a sequence of the values of its items</li>
+ * <li><code>{ "type": &lt;built-in atomic type, e.g. "decimal" or "xs:date"&gt;, "value": &lt;value or
+ * array of values&gt; }</code> is a value, or a sequence of values, cast from their lexical form</li>
+ * <li><code>{ "type": "document", "url": &lt;url&gt; | "xml": &lt;xml string&gt; }</code> is a document node,
+ * documents given by an absolute url come from the document cache when it is enabled, so they are parsed
+ * once and shared by every request</li>
+ * </ul>
+ */
+class ParamValues {
+
+    static final String TYPE = "type";
+    static final String VALUE = "value";
+    static final String URL = "url";
+    static final String XML = "xml";
+    static final String DOCUMENT = "document";
+
+    private final ItemTypeFactory itemTypes;
+    private final DocumentCache documentCache;
+    private final TreeBuilders treeBuilders;
+
+    /**
+     * @param documentCache cache of the documents of node-valued params, null to parse them every time
+     */
+    ParamValues(Processor processor, DocumentCache documentCache, TreeBuilders treeBuilders) {
+        this.itemTypes = new ItemTypeFactory(processor);
+        this.documentCache = documentCache;
+        this.treeBuilders = treeBuilders;
+    }
+
+    /**
+     * @param params <code>params</code> list of a request, null for none
+     * @return the values of the params by name, in the order of the list
+     * @throws SaxonApiException if a type is unknown, a value can't be cast or a document can't be parsed
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    Map<QName, XdmValue> of(JsonArray params) throws SaxonApiException {
+        final Map<QName, XdmValue> values = new LinkedHashMap<>();
+        if (params != null) {
+            for (Object param : params) {
+                final JsonObject object = (JsonObject) param;
+                for (String fieldName : object.getFieldNames()) {
+                    values.put(new QName(fieldName), value(fieldName, object.getValue(fieldName)));
+                }
+            }
+        }
+        return values;
+    }
+
+    private XdmValue value(String name, Object value) throws SaxonApiException {
+        if (value == null) {
+            return XdmEmptySequence.getInstance();
+        }
+        if (value instanceof String) {
+            return new XdmAtomicValue((String) value);
+        }
+        if (value instanceof Boolean) {
+            return new XdmAtomicValue((Boolean) value);
+        }
+        if (value instanceof Integer || value instanceof Long) {
+            return new XdmAtomicValue(((Number) value).longValue());
+        }
+        if (value instanceof Number) {
+            return new XdmAtomicValue(((Number) value).doubleValue());
+        }
+        if (value instanceof JsonArray) {
+            final List<XdmItem> items = new ArrayList<>();
+            for (Object item : (JsonArray) value) {
+                for (XdmItem xdmItem : value(name, item)) {
+                    items.add(xdmItem);
+                }
+            }
+            return new XdmValue(items);
+        }
+        if (value instanceof JsonObject) {
+            return typed(name, (JsonObject) value);
+        }
+        throw new IllegalArgumentException("invalid value of param " + name);
+    }
+
+    private XdmValue typed(String name, JsonObject object) throws SaxonApiException {
+        final String type = object.getString(TYPE);
+        if (Strings.isNullOrEmpty(type)) {
+            throw new IllegalArgumentException("type of param " + name + " must be specified");
+        }
+        if (DOCUMENT.equals(type)) {
+            final String url = object.getString(URL);
+            final String xml = object.getString(XML);
+            if (Strings.isNullOrEmpty(url) == Strings.isNullOrEmpty(xml)) {
+                throw new IllegalArgumentException("url either xml of param " + name + " must be specified");
+            }
+            if (!Strings.isNullOrEmpty(xml)) {
+                return treeBuilders.get(null).build(new StreamSource(new StringReader(xml)));
+            }
+            return documentCache != null && DocumentCache.accepts(url) ? documentCache.get(url)
+                    : treeBuilders.get(null).build(new SAXSource(new InputSource(url)));
+        }
+        final ItemType itemType = itemTypes.getAtomicType(
+                new QName(NamespaceConstant.SCHEMA, type.startsWith("xs:") ? type.substring(3) : type));
+        final Object value = object.getValue(VALUE);
+        if (value instanceof JsonArray) {
+            final List<XdmItem> items = new ArrayList<>();
+            for (Object item : (JsonArray) value) {
+                items.add(new XdmAtomicValue(String.valueOf(item), itemType));
+            }
+            return new XdmValue(items);
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("value of param " + name + " must be specified");
+        }
+        return new XdmAtomicValue(String.valueOf(value), itemType);
+    }
+}
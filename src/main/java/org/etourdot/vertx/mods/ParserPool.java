@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+import org.xml.sax.SAXException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Bounded pool of SAX parsers created by a factory configured once.<p>
+ * Config is <code>{ "size": n, "features": { uri: boolean } }</code>. At most <code>size</code> parsers
+ * are in use at the same time, a request borrowing a parser when all of them are in use waits for one to be
+ * released. Parsers are reset to the factory settings on release, so features must be set on the factory,
+ * not on a borrowed parser.
+ */
+class ParserPool {
+
+    static final String SIZE = "size";
+    static final String FEATURES = "features";
+
+    private static final JsonObject DEFAULT_FEATURES = new JsonObject()
+            .putBoolean("http://apache.org/xml/features/nonvalidating/load-external-dtd", true)
+            .putBoolean("http://apache.org/xml/features/validation/dynamic", true);
+
+    private final SAXParserFactory factory;
+    private final int size;
+    private final JsonObject features;
+    private final Semaphore permits;
+    private final BlockingQueue<SAXParser> idle;
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong creations = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong maxWait = new AtomicLong();
+
+    /**
+     * @throws IllegalArgumentException if a feature isn't supported by the parser
+     */
+    ParserPool(JsonObject config, int defaultSize) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        size = Math.max(1, config.getInteger(SIZE, defaultSize));
+        features = config.getObject(FEATURES, DEFAULT_FEATURES);
+        factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            for (String feature : features.getFieldNames()) {
+                factory.setFeature(feature, features.getBoolean(feature));
+            }
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        permits = new Semaphore(size, true);
+        idle = new ArrayBlockingQueue<>(size);
+    }
+
+    SAXParser borrow() throws InterruptedException, ParserConfigurationException, SAXException {
+        if (!permits.tryAcquire()) {
+            final long start = System.nanoTime();
+            permits.acquire();
+            final long wait = System.nanoTime() - start;
+            waits.incrementAndGet();
+            totalWait.addAndGet(wait);
+            long max = maxWait.get();
+            while (wait > max && !maxWait.compareAndSet(max, wait)) {
+                max = maxWait.get();
+            }
+        }
+        borrows.incrementAndGet();
+        final SAXParser parser = idle.poll();
+        if (parser != null) {
+            return parser;
+        }
+        try {
+            synchronized (factory) {
+                creations.incrementAndGet();
+                return factory.newSAXParser();
+            }
+        } catch (ParserConfigurationException | SAXException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(SAXParser parser) {
+        parser.reset();
+        idle.offer(parser);
+        permits.release();
+    }
+
+    JsonObject stats() {
+        return new JsonObject()
+                .putNumber("size", size)
+                .putNumber("idle", idle.size())
+                .putNumber("in_use", size - permits.availablePermits())
+                .putNumber("borrows", borrows.get())
+                .putNumber("creations", creations.get())
+                .putNumber("waits", waits.get())
+                .putNumber("total_wait_ms", TimeUnit.NANOSECONDS.toMillis(totalWait.get()))
+                .putNumber("max_wait_ms", TimeUnit.NANOSECONDS.toMillis(maxWait.get()))
+                .putObject("features", features);
+    }
+}
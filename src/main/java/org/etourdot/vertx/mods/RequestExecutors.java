@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dedicated executors processing the requests of each operation, so that requests don't run on the
+ * Vert.x event loop or background pool.<p>
+ * Config is <code>{ "threads": n, "queue_size": n, "validation": pool, "transform": pool, "query": pool,
+ * "xpath": pool, "pipeline": pool }</code> where each pool is <code>{ "threads": n, "queue_size": n }</code>.
+ * Operations without their own pool share the default one. A request submitted while its pool queue is
+ * full is rejected, handlers then reply <code>busy</code>. Threads are only started by the first requests.
+ */
+class RequestExecutors {
+
+    static final String VALIDATION = "validation";
+    static final String TRANSFORM = "transform";
+    static final String QUERY = "query";
+    static final String XPATH = "xpath";
+    static final String PIPELINE = "pipeline";
+    static final String THREADS = "threads";
+    static final String QUEUE_SIZE = "queue_size";
+    static final String DEFAULT = "default";
+
+    private static final String[] OPERATIONS = {VALIDATION, TRANSFORM, QUERY, XPATH, PIPELINE};
+
+    private final Map<String, Pool> pools = new HashMap<>();
+
+    RequestExecutors(JsonObject config, int defaultThreads) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        final Pool defaultPool = new Pool(DEFAULT, config, defaultThreads, 1000);
+        for (String operation : OPERATIONS) {
+            final JsonObject poolConfig = config.getObject(operation);
+            pools.put(operation, poolConfig == null ? defaultPool : new Pool(operation, poolConfig,
+                    defaultPool.threads, defaultPool.queueSize));
+        }
+    }
+
+    /**
+     * @return the executor of an operation
+     */
+    Pool get(String operation) {
+        return pools.get(operation);
+    }
+
+    JsonObject stats() {
+        final JsonObject stats = new JsonObject();
+        for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+            stats.putObject(entry.getKey(), entry.getValue().stats());
+        }
+        return stats;
+    }
+
+    void shutdown() {
+        for (Pool pool : pools.values()) {
+            pool.executor.shutdown();
+        }
+    }
+
+    /**
+     * Executor with a fixed number of threads and a bounded queue.
+     */
+    static final class Pool {
+        private final String name;
+        private final int threads;
+        private final int queueSize;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Pool(String name, JsonObject config, int defaultThreads, int defaultQueueSize) {
+            this.name = name;
+            threads = Math.max(1, config.getInteger(THREADS, defaultThreads));
+            queueSize = Math.max(0, config.getInteger(QUEUE_SIZE, defaultQueueSize));
+            final BlockingQueue<Runnable> queue = queueSize == 0 ? new SynchronousQueue<Runnable>()
+                    : new ArrayBlockingQueue<Runnable>(queueSize);
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+                    new ThreadFactoryBuilder().setNameFormat("xmlworker-" + name + "-%d").setDaemon(true).build());
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return false when the queue is full and the task is rejected
+         */
+        boolean submit(Runnable task) {
+            try {
+                executor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+
+        JsonObject stats() {
+            return new JsonObject()
+                    .putString("pool", name)
+                    .putNumber(THREADS, threads)
+                    .putNumber(QUEUE_SIZE, queueSize)
+                    .putNumber("active", executor.getActiveCount())
+                    .putNumber("queued", executor.getQueue().size())
+                    .putNumber("completed", executor.getCompletedTaskCount())
+                    .putNumber("rejected", rejected.get());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of requests, per operation and per template.<p>
+ * The latency of a request is split in phases: <code>queue</code> (wait for a thread), <code>parse</code>
+ * (document), <code>compile</code> (program, including compilation cache lookups), <code>evaluate</code>
+ * and <code>serialize</code> (output and reply). Stylesheets and xqueries serialize their output while they
+ * are evaluated, so their serialization is mostly counted in <code>evaluate</code>.<p>
+ * Templates are named templates and programs given by url, at most <code>max_templates</code> of them
+ * are tracked.
+ */
+class RequestMetrics {
+
+    static final String QUEUE = "queue";
+    static final String PARSE = "parse";
+    static final String COMPILE = "compile";
+    static final String EVALUATE = "evaluate";
+    static final String SERIALIZE = "serialize";
+    static final String PUBLISH_INTERVAL = "publish_interval_ms";
+    static final String ADDRESS = "address";
+    static final String MAX_TEMPLATES = "max_templates";
+
+    private static final String[] PHASES = {QUEUE, PARSE, COMPILE, EVALUATE, SERIALIZE};
+
+    private final long publishInterval;
+    private final String address;
+    private final int maxTemplates;
+    private final ConcurrentMap<String, Stats> operations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, Stats>> templates = new ConcurrentHashMap<>();
+    private final AtomicLong templateCount = new AtomicLong();
+
+    RequestMetrics(JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        publishInterval = config.getLong(PUBLISH_INTERVAL, 0);
+        address = config.getString(ADDRESS, XmlWorker.METRICS_ADDRESS);
+        maxTemplates = config.getInteger(MAX_TEMPLATES, 1000);
+    }
+
+    /**
+     * @return the interval in ms between publications on {@link #getAddress}, 0 when metrics aren't published
+     */
+    long getPublishInterval() {
+        return publishInterval;
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * Starts the sample of a request, its <code>queue</code> phase starts now.
+     *
+     * @param template template or url of the program of the request, null for an inline program
+     */
+    Sample start(String operation, String template) {
+        final Stats stats = operationStats(operation);
+        stats.inFlight.incrementAndGet();
+        return new Sample(stats, template == null ? null : templateStats(operation, template));
+    }
+
+    void finish(Sample sample) {
+        final long latency = System.nanoTime() - sample.start;
+        sample.operation.inFlight.decrementAndGet();
+        sample.operation.record(sample, latency);
+        if (sample.template != null) {
+            sample.template.record(sample, latency);
+        }
+    }
+
+    JsonObject toJson() {
+        final JsonObject operationsJson = new JsonObject();
+        for (Map.Entry<String, Stats> entry : operations.entrySet()) {
+            operationsJson.putObject(entry.getKey(), entry.getValue().toJson().putNumber("in_flight",
+                    entry.getValue().inFlight.get()));
+        }
+        final JsonObject templatesJson = new JsonObject();
+        for (Map.Entry<String, ConcurrentMap<String, Stats>> entry : templates.entrySet()) {
+            final JsonObject operationTemplates = new JsonObject();
+            for (Map.Entry<String, Stats> template : entry.getValue().entrySet()) {
+                operationTemplates.putObject(template.getKey(), template.getValue().toJson());
+            }
+            templatesJson.putObject(entry.getKey(), operationTemplates);
+        }
+        return new JsonObject().putObject("operations", operationsJson).putObject("templates", templatesJson);
+    }
+
+    private Stats operationStats(String operation) {
+        Stats stats = operations.get(operation);
+        if (stats == null) {
+            final Stats created = new Stats();
+            stats = operations.putIfAbsent(operation, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the stats of a template, null when too many templates are already tracked
+     */
+    private Stats templateStats(String operation, String template) {
+        ConcurrentMap<String, Stats> operationTemplates = templates.get(operation);
+        if (operationTemplates == null) {
+            final ConcurrentMap<String, Stats> created = new ConcurrentHashMap<>();
+            operationTemplates = templates.putIfAbsent(operation, created);
+            if (operationTemplates == null) {
+                operationTemplates = created;
+            }
+        }
+        Stats stats = operationTemplates.get(template);
+        if (stats == null) {
+            if (templateCount.incrementAndGet() > maxTemplates) {
+                templateCount.decrementAndGet();
+                return null;
+            }
+            final Stats created = new Stats();
+            stats = operationTemplates.putIfAbsent(template, created);
+            if (stats == null) {
+                stats = created;
+            } else {
+                templateCount.decrementAndGet();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Timings of a request, used by the thread processing it.
+     */
+    static final class Sample {
+        private final Stats operation;
+        private final Stats template;
+        private final long start = System.nanoTime();
+        private final long[] phases = new long[PHASES.length];
+        private long last = start;
+        private volatile String status = "ok";
+
+        private Sample(Stats operation, Stats template) {
+            this.operation = operation;
+            this.template = template;
+        }
+
+        /**
+         * Ends a phase, the next one starts now.
+         */
+        void lap(String phase) {
+            final long now = System.nanoTime();
+            for (int i = 0; i < PHASES.length; i++) {
+                if (PHASES[i].equals(phase)) {
+                    phases[i] += now - last;
+                }
+            }
+            last = now;
+        }
+
+        /**
+         * @param status status of the reply of the request
+         */
+        void setStatus(String status) {
+            this.status = status;
+        }
+    }
+
+    private static final class Stats {
+        private final AtomicLong inFlight = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> statuses = new ConcurrentHashMap<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+        private Stats() {
+            for (int i = 0; i < PHASES.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        private void record(Sample sample, long latencyNanos) {
+            AtomicLong counter = statuses.get(sample.status);
+            if (counter == null) {
+                final AtomicLong created = new AtomicLong();
+                counter = statuses.putIfAbsent(sample.status, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.incrementAndGet();
+            latency.record(latencyNanos);
+            for (int i = 0; i < PHASES.length; i++) {
+                if (sample.phases[i] > 0) {
+                    phases[i].record(sample.phases[i]);
+                }
+            }
+        }
+
+        private JsonObject toJson() {
+            final JsonObject statusesJson = new JsonObject();
+            for (Map.Entry<String, AtomicLong> entry : statuses.entrySet()) {
+                statusesJson.putNumber(entry.getKey(), entry.getValue().get());
+            }
+            final JsonObject phasesJson = new JsonObject();
+            for (int i = 0; i < PHASES.length; i++) {
+                phasesJson.putObject(PHASES[i], phases[i].toJson());
+            }
+            return new JsonObject()
+                    .putNumber("requests", latency.getCount())
+                    .putObject("statuses", statusesJson)
+                    .putObject("latency", latency.toJson())
+                    .putObject("phases", phasesJson);
+        }
+    }
+}
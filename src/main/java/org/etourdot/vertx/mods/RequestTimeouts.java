@@ -0,0 +1,234 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.trace.InstructionInfo;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.PrintStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deadlines of requests.<p>
+ * When the deadline of a request expires, its handler replies a timeout error at once and the thread
+ * processing the request is interrupted. When the module is <code>interruptible</code>, stylesheets and
+ * xqueries are compiled with trace hooks and evaluations are aborted at their next instruction; otherwise
+ * they run to completion and their result is dropped.
+ */
+class RequestTimeouts {
+
+    static final String TIMEOUT = "timeout_ms";
+
+    private final long defaultTimeout;
+    private final boolean interruptible;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+
+    /**
+     * @param defaultTimeout timeout in ms of requests without <code>timeout_ms</code>, 0 for none
+     */
+    RequestTimeouts(long defaultTimeout, boolean interruptible) {
+        this.defaultTimeout = defaultTimeout;
+        this.interruptible = interruptible;
+        scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("xmlworker-timeout-%d").setDaemon(true).build());
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return the deadline of a request, started by {@link #schedule}
+     */
+    Deadline newDeadline(JsonObject body) {
+        return new Deadline(body.getLong(TIMEOUT, defaultTimeout), interruptible);
+    }
+
+    /**
+     * Starts a deadline, <code>onTimeout</code> is run by the timer thread with the timeout error
+     * when it expires before the request is replied.
+     */
+    void schedule(final Deadline deadline, final Handler<String> onTimeout) {
+        if (deadline.timeout > 0) {
+            deadline.future = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (deadline.expire()) {
+                        timeouts.incrementAndGet();
+                        onTimeout.handle(new Expired(deadline.timeout).getMessage());
+                    }
+                }
+            }, deadline.timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Counts an evaluation stopped by its deadline.
+     */
+    void aborted() {
+        aborted.incrementAndGet();
+    }
+
+    JsonObject stats() {
+        return new JsonObject()
+                .putNumber(TIMEOUT, defaultTimeout)
+                .putBoolean("interruptible", interruptible)
+                .putNumber("timeouts", timeouts.get())
+                .putNumber("aborted", aborted.get());
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Deadline of a request, also a trace listener which aborts evaluations once it is expired.
+     */
+    static final class Deadline implements TraceListener {
+        private final long timeout;
+        private final boolean interruptible;
+        private volatile boolean expired;
+        private boolean replied;
+        private Thread thread;
+        private volatile ScheduledFuture<?> future;
+
+        private Deadline(long timeout, boolean interruptible) {
+            this.timeout = timeout;
+            this.interruptible = interruptible;
+        }
+
+        long getTimeout() {
+            return timeout;
+        }
+
+        boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * @return the trace listener to set on evaluators, null when evaluations can't be aborted
+         */
+        TraceListener getTraceListener() {
+            return interruptible && timeout > 0 ? this : null;
+        }
+
+        /**
+         * @throws Expired if the deadline is expired
+         */
+        void check() {
+            if (expired) {
+                throw new Expired(timeout);
+            }
+        }
+
+        /**
+         * Binds the deadline to the current thread, which is interrupted if it expires.
+         */
+        synchronized void attach() {
+            thread = Thread.currentThread();
+        }
+
+        /**
+         * Unbinds the deadline from the current thread and stops its timer.
+         */
+        void detach() {
+            synchronized (this) {
+                thread = null;
+                if (expired) {
+                    // clears the interruption of the timer, the thread may be reused by another request
+                    Thread.interrupted();
+                }
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * @return true if the request can be replied, false when it has already been replied by the timer
+         */
+        synchronized boolean claimReply() {
+            if (replied) {
+                return false;
+            }
+            replied = true;
+            return true;
+        }
+
+        private synchronized boolean expire() {
+            if (replied) {
+                return false;
+            }
+            replied = true;
+            expired = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            return true;
+        }
+
+        @Override
+        public void setOutputDestination(PrintStream stream) {
+        }
+
+        @Override
+        public void open(Controller controller) {
+            check();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void enter(InstructionInfo instruction, XPathContext context) {
+            check();
+        }
+
+        @Override
+        public void leave(InstructionInfo instruction) {
+        }
+
+        @Override
+        public void startCurrentItem(Item currentItem) {
+            check();
+        }
+
+        @Override
+        public void endCurrentItem(Item currentItem) {
+        }
+    }
+
+    /**
+     * Raised by an evaluation whose deadline is expired.
+     */
+    static final class Expired extends RuntimeException {
+        Expired(long timeout) {
+            super("timeout after " + timeout + " ms");
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.file.FileProps;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientRequest;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fetches <code>http:</code>, <code>https:</code> and <code>file:</code> urls without blocking, with the
+ * Vert.x HttpClient and FileSystem, so that requests are only processed once their inputs are in memory.<p>
+ * Config is <code>{ "timeout_ms": n, "max_size": n, "max_pool_size": n, "keep_alive": b }</code>.
+ * One pooled HttpClient is kept per host, fetchers are bound to the context of the verticle which
+ * created them. Redirections aren't followed.
+ */
+class ResourceFetcher {
+
+    static final String TIMEOUT = "timeout_ms";
+    static final long DEFAULT_TIMEOUT = 30000;
+    static final String MAX_SIZE = "max_size";
+    static final String MAX_POOL_SIZE = "max_pool_size";
+    static final String KEEP_ALIVE = "keep_alive";
+
+    private final Vertx vertx;
+    private final long timeout;
+    private final long maxSize;
+    private final int maxPoolSize;
+    private final boolean keepAlive;
+    private final Map<String, HttpClient> clients = new HashMap<>();
+
+    ResourceFetcher(Vertx vertx, JsonObject config) {
+        this.vertx = vertx;
+        timeout = config.getLong(TIMEOUT, DEFAULT_TIMEOUT);
+        maxSize = config.getLong(MAX_SIZE, 16 * 1024 * 1024);
+        maxPoolSize = config.getInteger(MAX_POOL_SIZE, 5);
+        keepAlive = config.getBoolean(KEEP_ALIVE, true);
+    }
+
+    /**
+     * @return true if the url can be fetched without blocking
+     */
+    static boolean accepts(String url) {
+        return url != null && (url.startsWith("http:") || url.startsWith("https:") || url.startsWith("file:"));
+    }
+
+    void fetch(String url, Handler<AsyncResult<Buffer>> handler) {
+        final URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            handler.handle(new DefaultFutureResult<Buffer>(e));
+            return;
+        }
+        if ("file".equals(uri.getScheme())) {
+            fetchFile(url, new File(uri).getPath(), handler);
+        } else {
+            fetchHttp(url, uri, handler);
+        }
+    }
+
+    void close() {
+        for (HttpClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    private void fetchFile(final String url, final String path, final Handler<AsyncResult<Buffer>> handler) {
+        vertx.fileSystem().props(path, new Handler<AsyncResult<FileProps>>() {
+            @Override
+            public void handle(AsyncResult<FileProps> props) {
+                if (props.failed()) {
+                    handler.handle(new DefaultFutureResult<Buffer>(props.cause()));
+                } else if (props.result().size() > maxSize) {
+                    handler.handle(new DefaultFutureResult<Buffer>(tooLarge(url)));
+                } else {
+                    vertx.fileSystem().readFile(path, handler);
+                }
+            }
+        });
+    }
+
+    private void fetchHttp(final String url, URI uri, final Handler<AsyncResult<Buffer>> handler) {
+        final Once once = new Once(handler);
+        final HttpClientRequest request = client(uri).get(uri.getRawPath() + (uri.getRawQuery() == null
+                ? "" : "?" + uri.getRawQuery()), new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(HttpClientResponse response) {
+                if (response.statusCode() != 200) {
+                    once.fail(new IOException(url + ": HTTP " + response.statusCode()));
+                    return;
+                }
+                final String contentLength = response.headers().get("Content-Length");
+                if (contentLength != null && Long.parseLong(contentLength) > maxSize) {
+                    once.fail(tooLarge(url));
+                    return;
+                }
+                final Buffer body = new Buffer();
+                response.dataHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(Buffer data) {
+                        // data beyond the limit is dropped until the end of the response
+                        if (!once.isDone() && body.length() + data.length() > maxSize) {
+                            once.fail(tooLarge(url));
+                        } else if (!once.isDone()) {
+                            body.appendBuffer(data);
+                        }
+                    }
+                });
+                response.endHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        once.succeed(body);
+                    }
+                });
+                response.exceptionHandler(new Handler<Throwable>() {
+                    @Override
+                    public void handle(Throwable cause) {
+                        once.fail(cause);
+                    }
+                });
+            }
+        });
+        request.exceptionHandler(new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable cause) {
+                once.fail(cause);
+            }
+        });
+        request.setTimeout(timeout);
+        request.end();
+    }
+
+    private HttpClient client(URI uri) {
+        final boolean ssl = "https".equals(uri.getScheme());
+        final int port = uri.getPort() != -1 ? uri.getPort() : ssl ? 443 : 80;
+        final String key = uri.getScheme() + "://" + uri.getHost() + ":" + port;
+        HttpClient client = clients.get(key);
+        if (client == null) {
+            client = vertx.createHttpClient().setHost(uri.getHost()).setPort(port).setSSL(ssl)
+                    .setMaxPoolSize(maxPoolSize).setKeepAlive(keepAlive)
+                    .setConnectTimeout((int) Math.min(Integer.MAX_VALUE, timeout));
+            clients.put(key, client);
+        }
+        return client;
+    }
+
+    private IOException tooLarge(String url) {
+        return new IOException(url + ": larger than " + maxSize + " bytes");
+    }
+
+    /**
+     * Completes a fetch only once, whatever the number of failures reported by the client.
+     */
+    private static final class Once {
+        private final Handler<AsyncResult<Buffer>> handler;
+        private boolean done;
+
+        private Once(Handler<AsyncResult<Buffer>> handler) {
+            this.handler = handler;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        void succeed(Buffer buffer) {
+            if (!done) {
+                done = true;
+                handler.handle(new DefaultFutureResult<>(buffer));
+            }
+        }
+
+        void fail(Throwable cause) {
+            if (!done) {
+                done = true;
+                handler.handle(new DefaultFutureResult<Buffer>(cause));
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+import org.vertx.java.core.json.JsonObject;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Resolver of the resources referenced by documents, stylesheets and schemas (DTDs and external
+ * entities, <code>xs:include</code>/<code>xs:import</code>, <code>xsl:include</code>/<code>xsl:import</code>,
+ * <code>document()</code>...), serving them from an in-memory cache.<p>
+ * Config is the one of {@link CacheSettings} plus an optional catalog mapping identifiers to local files:
+ * <code>{ "catalog": { "public": { publicId: path }, "system": { systemId: path } } }</code>.
+ * Entries are weighed by their length in bytes.
+ */
+class ResourceResolver implements EntityResolver, URIResolver, LSResourceResolver, XMLResolver {
+
+    static final String CATALOG = "catalog";
+    static final String PUBLIC = "public";
+    static final String SYSTEM = "system";
+    static final long DEFAULT_MAX_WEIGHT = 16 * 1024 * 1024;
+
+    private final CacheSettings settings;
+    private final EvictionCounter<String, byte[]> evictions;
+    private final Cache<String, byte[]> cache;
+    private final ImmutableMap<String, String> publicIds;
+    private final ImmutableMap<String, String> systemIds;
+
+    ResourceResolver(JsonObject config) {
+        settings = new CacheSettings(config, 1000, DEFAULT_MAX_WEIGHT, 0);
+        evictions = new EvictionCounter<>();
+        cache = settings.newBuilder(new Weigher<String, byte[]>() {
+            @Override
+            public int weigh(String uri, byte[] content) {
+                return content.length;
+            }
+        }, evictions).build();
+        final JsonObject catalog = config.getObject(CATALOG, new JsonObject());
+        publicIds = toUris(catalog.getObject(PUBLIC, new JsonObject()));
+        systemIds = toUris(catalog.getObject(SYSTEM, new JsonObject()));
+    }
+
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+        final String uri = locate(publicId, systemId, null);
+        if (uri == null) {
+            return null;
+        }
+        final InputSource inputSource = new InputSource(open(uri));
+        inputSource.setPublicId(publicId);
+        inputSource.setSystemId(uri);
+        return inputSource;
+    }
+
+    @Override
+    public Source resolve(String href, String base) throws TransformerException {
+        try {
+            final String uri = locate(null, href, base);
+            return uri == null ? null : new StreamSource(open(uri), uri);
+        } catch (IOException e) {
+            throw new TransformerException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId,
+                                   String baseURI) {
+        try {
+            final String uri = locate(publicId, systemId, baseURI);
+            return uri == null ? null : new Input(publicId, uri, baseURI, open(uri));
+        } catch (IOException e) {
+            // lets the schema factory report the resource as not found
+            return null;
+        }
+    }
+
+    @Override
+    public Object resolveEntity(String publicId, String systemId, String baseURI, String namespace)
+            throws XMLStreamException {
+        try {
+            final String uri = locate(publicId, systemId, baseURI);
+            return uri == null ? null : open(uri);
+        } catch (IOException e) {
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+    }
+
+    JsonObject stats() {
+        final CacheStats stats = cache.stats();
+        long weight = 0;
+        for (byte[] content : cache.asMap().values()) {
+            weight += content.length;
+        }
+        return new JsonObject()
+                .putNumber("size", cache.size())
+                .putNumber("weight", weight)
+                .putNumber("hits", stats.hitCount())
+                .putNumber("misses", stats.missCount())
+                .putNumber("load_failures", stats.loadExceptionCount())
+                .putObject("evictions", evictions.toJson())
+                .putObject("settings", settings.toJson());
+    }
+
+    /**
+     * Returns the absolute uri of a resource, mapped by the catalog when it declares its identifiers.
+     */
+    private String locate(String publicId, String systemId, String base) throws IOException {
+        if (publicId != null && publicIds.containsKey(publicId)) {
+            return publicIds.get(publicId);
+        }
+        if (systemId == null) {
+            return null;
+        }
+        if (systemIds.containsKey(systemId)) {
+            return systemIds.get(systemId);
+        }
+        try {
+            final URI uri = base == null ? new URI(systemId) : new URI(base).resolve(systemId);
+            if (!uri.isAbsolute()) {
+                return null;
+            }
+            final String absolute = uri.toString();
+            return systemIds.containsKey(absolute) ? systemIds.get(absolute) : absolute;
+        } catch (URISyntaxException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private InputStream open(final String uri) throws IOException {
+        try {
+            return new ByteArrayInputStream(cache.get(uri, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    try (InputStream input = new URL(uri).openStream()) {
+                        return ByteStreams.toByteArray(input);
+                    }
+                }
+            }));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private static ImmutableMap<String, String> toUris(JsonObject mapping) {
+        final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Object> entry : mapping.toMap().entrySet()) {
+            builder.put(entry.getKey(), new File((String) entry.getValue()).getAbsoluteFile().toURI().toString());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Resource served to a schema factory or a validator.
+     */
+    private static final class Input implements LSInput {
+        private String publicId;
+        private String systemId;
+        private String baseURI;
+        private InputStream byteStream;
+
+        private Input(String publicId, String systemId, String baseURI, InputStream byteStream) {
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.baseURI = baseURI;
+            this.byteStream = byteStream;
+        }
+
+        @Override
+        public Reader getCharacterStream() {
+            return null;
+        }
+
+        @Override
+        public void setCharacterStream(Reader characterStream) {
+        }
+
+        @Override
+        public InputStream getByteStream() {
+            return byteStream;
+        }
+
+        @Override
+        public void setByteStream(InputStream byteStream) {
+            this.byteStream = byteStream;
+        }
+
+        @Override
+        public String getStringData() {
+            return null;
+        }
+
+        @Override
+        public void setStringData(String stringData) {
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void setSystemId(String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public void setPublicId(String publicId) {
+            this.publicId = publicId;
+        }
+
+        @Override
+        public String getBaseURI() {
+            return baseURI;
+        }
+
+        @Override
+        public void setBaseURI(String baseURI) {
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public void setEncoding(String encoding) {
+        }
+
+        @Override
+        public boolean getCertifiedText() {
+            return false;
+        }
+
+        @Override
+        public void setCertifiedText(boolean certifiedText) {
+        }
+    }
+}
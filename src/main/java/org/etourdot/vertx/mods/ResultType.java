@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmFunctionItem;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.StringToDouble;
+import net.sf.saxon.value.BooleanValue;
+import net.sf.saxon.value.NumericValue;
+
+import org.vertx.java.core.json.JsonArray;
+
+/**
+ * Typed result of an xpath or an xquery, mapped to a JSON value:<p>
+ * <ul>
+ * <li><code>string</code>: string value of the first item, null for an empty sequence</li>
+ * <li><code>number</code>: numeric value of the first item as by <code>number()</code>, null for an
+ * empty sequence, NaN or infinity</li>
+ * <li><code>boolean</code>: effective boolean value of the result</li>
+ * <li><code>nodes</code>: array of the items, nodes serialized without xml declaration and atomic
+ * values as strings</li>
+ * <li><code>string-list</code>: array of the string values of the items</li>
+ * <li><code>json</code>: array of the items, numeric and boolean atomic values as JSON numbers and
+ * booleans, other atomic values as strings, elements and documents serialized without xml declaration
+ * and other nodes as their string value</li>
+ * </ul>
+ * Values are mapped item by item, without serializing the whole result.
+ */
+enum ResultType {
+
+    STRING, NUMBER, BOOLEAN, NODES, STRING_LIST, JSON;
+
+    /**
+     * @throws IllegalArgumentException if the type is unknown
+     */
+    static ResultType of(String type) {
+        for (ResultType resultType : values()) {
+            if (resultType.toString().equals(type)) {
+                return resultType;
+            }
+        }
+        throw new IllegalArgumentException("unknown result type " + type);
+    }
+
+    /**
+     * Evaluates a selector whose context item and variables are set.
+     */
+    Object evaluate(Processor processor, XPathSelector selector) throws SaxonApiException {
+        switch (this) {
+            case BOOLEAN:
+                return selector.effectiveBooleanValue();
+            case STRING: {
+                final XdmItem item = selector.evaluateSingle();
+                return item == null ? null : item.getStringValue();
+            }
+            case NUMBER: {
+                final XdmItem item = selector.evaluateSingle();
+                return item == null ? null : toNumber(item);
+            }
+            default:
+                return map(processor, selector.evaluate());
+        }
+    }
+
+    /**
+     * @return true when the result of a sequence of nodes only depends on its first node
+     */
+    boolean isFirstItemOnly() {
+        return this == STRING || this == NUMBER || this == BOOLEAN;
+    }
+
+    /**
+     * Maps an evaluated result.
+     *
+     * @throws IllegalArgumentException if the result holds function items
+     */
+    Object map(Processor processor, XdmValue value) throws SaxonApiException {
+        switch (this) {
+            case BOOLEAN:
+                try {
+                    return ExpressionTool.effectiveBooleanValue(value.getUnderlyingValue().iterate());
+                } catch (XPathException e) {
+                    throw new SaxonApiException(e);
+                }
+            case STRING:
+                return value.size() == 0 ? null : value.itemAt(0).getStringValue();
+            case NUMBER:
+                return value.size() == 0 ? null : toNumber(value.itemAt(0));
+            default: {
+                final JsonArray items = new JsonArray();
+                final Serializer serializer = processor.newSerializer();
+                serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+                for (XdmItem item : value) {
+                    items.add(mapItem(serializer, item));
+                }
+                return items;
+            }
+        }
+    }
+
+    /**
+     * Creates a mapper of a result given item by item, so that items don't have to be kept.
+     */
+    Mapper newMapper(Processor processor) {
+        return new Mapper(processor);
+    }
+
+    /**
+     * Result mapped as its items are added.
+     */
+    final class Mapper {
+        private final Processor processor;
+        private final Serializer serializer;
+        private final JsonArray items = new JsonArray();
+        private XdmItem first;
+
+        private Mapper(Processor processor) {
+            this.processor = processor;
+            serializer = processor.newSerializer();
+            serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+        }
+
+        /**
+         * @return false when the result doesn't depend on the next items
+         * @throws IllegalArgumentException if the item is a function item
+         */
+        boolean add(XdmItem item) throws SaxonApiException {
+            if (isFirstItemOnly()) {
+                first = item;
+                return false;
+            }
+            items.add(mapItem(serializer, item));
+            return true;
+        }
+
+        /**
+         * @return the result of a sequence of nodes
+         */
+        Object result() throws SaxonApiException {
+            if (isFirstItemOnly()) {
+                return map(processor, first == null ? XdmEmptySequence.getInstance() : first);
+            }
+            return items;
+        }
+    }
+
+    private Object mapItem(Serializer serializer, XdmItem item) throws SaxonApiException {
+        if (item instanceof XdmFunctionItem) {
+            throw new IllegalArgumentException("function items can't be mapped to " + this);
+        }
+        switch (this) {
+            case STRING_LIST:
+                return item.getStringValue();
+            case JSON:
+                if (item.isAtomicValue()) {
+                    final Sequence atomic = item.getUnderlyingValue();
+                    if (atomic instanceof BooleanValue) {
+                        return ((BooleanValue) atomic).getBooleanValue();
+                    }
+                    if (atomic instanceof NumericValue) {
+                        return toNumber(item);
+                    }
+                    return item.getStringValue();
+                }
+                final XdmNodeKind kind = ((XdmNode) item).getNodeKind();
+                return kind == XdmNodeKind.ELEMENT || kind == XdmNodeKind.DOCUMENT
+                        ? serializer.serializeNodeToString((XdmNode) item) : item.getStringValue();
+            default:
+                return item instanceof XdmNode
+                        ? serializer.serializeNodeToString((XdmNode) item) : item.getStringValue();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase().replace('_', '-');
+    }
+
+    private static Number toNumber(XdmItem item) {
+        double value;
+        if (item.isAtomicValue()) {
+            try {
+                value = ((XdmAtomicValue) item).getDoubleValue();
+            } catch (SaxonApiException e) {
+                value = Double.NaN;
+            }
+        } else {
+            try {
+                // the lexical rules of xs:double, as number() applies them
+                value = StringToDouble.getInstance().stringToNumber(item.getStringValue());
+            } catch (NumberFormatException e) {
+                value = Double.NaN;
+            }
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return null;
+        }
+        if (value == Math.rint(value) && Math.abs(value) < (1L << 53)) {
+            return (long) value;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resources shared by all instances of a deployment of the module.<p>
+ * Instances deployed with the same config share the same Saxon processor (and so its name pool),
+ * the same compilation cache and the same templates, compiled executables being thread-safe.
+ * They also hold the resource resolver and the document cache (null when they are not configured), the output
+ * directory of <code>file</code> output mode (null when it is disabled), the threads of batch transforms, the
+ * SAX parsers of validations, the document builders of source trees, the typing of params, the executors, the
+ * deadlines and the metrics of requests.
+ * Resources are reference counted and dropped when the last instance stops.
+ */
+final class SharedResources {
+
+    private static final Map<String, SharedResources> INSTANCES = new HashMap<>();
+
+    private final String key;
+    private int references;
+    private Object publisher;
+
+    final ResourceResolver resourceResolver;
+    final Processor processor;
+    final CompilationCache compilationCache;
+    final TemplateRegistry templateRegistry;
+    final DocumentCache documentCache;
+    final File outputDirectory;
+    final ExecutorService batchExecutor;
+    final int batchThreads;
+    final ParserPool parserPool;
+    final TreeBuilders treeBuilders;
+    final ParamValues paramValues;
+    final RequestExecutors executors;
+    final RequestTimeouts timeouts;
+    final RequestMetrics metrics;
+
+    private SharedResources(String key, JsonObject config) throws TemplateRegistry.TemplateException {
+        this.key = key;
+        final int poolSize = config.getInteger(XmlWorker.POOL_SIZE, Runtime.getRuntime().availableProcessors());
+        final JsonObject resourceCacheConfig = config.getObject(XmlWorker.RESOURCE_CACHE);
+        resourceResolver = resourceCacheConfig == null ? null : new ResourceResolver(resourceCacheConfig);
+        processor = new Processor(new Configuration());
+        final boolean interruptible = config.getBoolean(XmlWorker.INTERRUPTIBLE, false);
+        if (interruptible) {
+            // trace hooks let timed out stylesheets and xqueries be aborted at any instruction
+            processor.getUnderlyingConfiguration().setCompileWithTracing(true);
+        }
+        if (resourceResolver != null) {
+            // used by default by stylesheets, queries and document parsing
+            processor.getUnderlyingConfiguration().setURIResolver(resourceResolver);
+            processor.getUnderlyingConfiguration().getParseOptions().setEntityResolver(resourceResolver);
+        }
+        compilationCache = new CompilationCache(poolSize,
+                new CacheSettings(config.getObject(XmlWorker.COMPILATION_CACHE), 1000, 20 * 60));
+        // templates are compiled eagerly so that first requests don't pay for it
+        templateRegistry = new TemplateRegistry(processor, resourceResolver,
+                config.getObject(XmlWorker.TEMPLATES), poolSize);
+        treeBuilders = new TreeBuilders(processor, resourceResolver, config.getObject(XmlWorker.TREE));
+        final JsonObject documentCacheConfig = config.getObject(XmlWorker.DOCUMENT_CACHE);
+        final JsonObject fetchConfig = config.getObject(XmlWorker.FETCH);
+        documentCache = documentCacheConfig == null ? null : new DocumentCache(treeBuilders, documentCacheConfig,
+                fetchConfig == null ? ResourceFetcher.DEFAULT_TIMEOUT
+                        : fetchConfig.getLong(ResourceFetcher.TIMEOUT, ResourceFetcher.DEFAULT_TIMEOUT));
+        paramValues = new ParamValues(processor, documentCache, treeBuilders);
+        final String directory = config.getString(XmlWorker.OUTPUT_DIRECTORY);
+        outputDirectory = directory == null ? null : new File(directory).getAbsoluteFile();
+        parserPool = new ParserPool(config.getObject(XmlWorker.PARSER_POOL), poolSize);
+        batchThreads = config.getInteger(XmlWorker.BATCH_THREADS, Runtime.getRuntime().availableProcessors());
+        batchExecutor = Executors.newFixedThreadPool(batchThreads,
+                new ThreadFactoryBuilder().setNameFormat("xmlworker-batch-%d").setDaemon(true).build());
+        executors = new RequestExecutors(config.getObject(XmlWorker.EXECUTORS), poolSize);
+        timeouts = new RequestTimeouts(config.getLong(XmlWorker.TIMEOUT, 0), interruptible);
+        metrics = new RequestMetrics(config.getObject(XmlWorker.METRICS));
+    }
+
+    static SharedResources acquire(JsonObject config) throws TemplateRegistry.TemplateException {
+        final String key = config.encode();
+        synchronized (INSTANCES) {
+            SharedResources resources = INSTANCES.get(key);
+            if (resources == null) {
+                resources = new SharedResources(key, config);
+                INSTANCES.put(key, resources);
+            }
+            resources.references++;
+            return resources;
+        }
+    }
+
+    /**
+     * Elects the instance publishing the metrics of the deployment, the first one still running.
+     *
+     * @return true if <code>instance</code> publishes the metrics
+     */
+    boolean isPublisher(Object instance) {
+        synchronized (INSTANCES) {
+            if (publisher == null) {
+                publisher = instance;
+            }
+            return publisher == instance;
+        }
+    }
+
+    void release(Object instance) {
+        synchronized (INSTANCES) {
+            if (publisher == instance) {
+                publisher = null;
+            }
+        }
+        release();
+    }
+
+    void release() {
+        synchronized (INSTANCES) {
+            if (--references == 0) {
+                INSTANCES.remove(key);
+                batchExecutor.shutdown();
+                executors.shutdown();
+                timeouts.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.BuildingStreamWriterImpl;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * XPath evaluated in a single StAX pass over a document, without building its tree.<p>
+ * Only absolute location paths of a subset of XPath are streamable: steps on the child (<code>/</code>)
+ * or descendant (<code>//</code>) axes testing an element name without prefix or <code>*</code>, with
+ * predicates <code>[@name]</code>, <code>[@name='value']</code> or <code>[@name!='value']</code>, the
+ * last step possibly being <code>text()</code> or <code>@name</code>. E.g.
+ * <code>/catalog/book[@lang='en']/title</code> or <code>//book/@isbn</code>.<p>
+ * Each match is built as a small tree, matches nested in an element match are nodes of its tree rather
+ * than copies, so memory is bounded by the size of the largest outermost match rather than by the size of
+ * the document. Matches are given in document order as soon as they are complete, an element containing a
+ * nested match is given before it, and its nested matches once it is complete.
+ */
+final class StreamingXPath {
+
+    private static final int MAX_STEPS = 63;
+
+    private enum Kind {
+        ELEMENT, TEXT, ATTRIBUTE
+    }
+
+    private final Step[] steps;
+    private final Kind kind;
+    private final String attribute;
+
+    private StreamingXPath(List<Step> steps, Kind kind, String attribute) {
+        this.steps = steps.toArray(new Step[steps.size()]);
+        this.kind = kind;
+        this.attribute = attribute;
+    }
+
+    /**
+     * @return the compiled xpath, null when it isn't streamable
+     */
+    static StreamingXPath compile(String xpath) {
+        return new Parser(xpath).parse();
+    }
+
+    /**
+     * @return true when the xpath selects attributes, which can't be serialized
+     */
+    boolean selectsAttributes() {
+        return kind == Kind.ATTRIBUTE;
+    }
+
+    /**
+     * Receives the matches of an xpath.
+     */
+    interface Matches {
+        /**
+         * @param node a matching element, text or attribute node
+         * @return false to stop the evaluation
+         */
+        boolean match(XdmNode node) throws SaxonApiException;
+    }
+
+    /**
+     * Evaluates the xpath on a document, the evaluation stops at the end of the document or when
+     * <code>matches</code> returns false.
+     *
+     * @param inputFactory coalescing and namespace aware factory reading the document
+     */
+    void evaluate(Processor processor, XMLInputFactory inputFactory, Source source, Matches matches)
+            throws SaxonApiException {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(toStreamSource(source));
+            new Evaluation(processor, reader, matches).run();
+        } catch (XMLStreamException e) {
+            throw new SaxonApiException(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // ignored, the document is already read or failed
+                }
+            }
+        }
+    }
+
+    private static Source toStreamSource(Source source) {
+        if (source instanceof SAXSource) {
+            return new StreamSource(((SAXSource) source).getInputSource().getSystemId());
+        }
+        return source;
+    }
+
+    /**
+     * State of one pass. The state of an element is a bit set of the steps to match next by its
+     * children, bit <code>steps.length</code> being set when the element is selected by all the steps.
+     */
+    private final class Evaluation {
+        private final Processor processor;
+        private final XMLStreamReader reader;
+        private final Matches matches;
+        private long[] states = new long[16];
+        private int[] namespaceMarks = new int[16];
+        private int depth;
+        private final List<String> namespaces = new ArrayList<>();
+        private final Deque<Match> pending = new ArrayDeque<>();
+        private Capture open;
+        private boolean stopped;
+
+        private Evaluation(Processor processor, XMLStreamReader reader, Matches matches) {
+            this.processor = processor;
+            this.reader = reader;
+            this.matches = matches;
+            states[0] = 1L;
+        }
+
+        private void run() throws XMLStreamException, SaxonApiException {
+            final long selected = 1L << steps.length;
+            final StringBuilder text = new StringBuilder();
+            while (!stopped && reader.hasNext()) {
+                final int event = reader.next();
+                if (kind == Kind.TEXT && text.length() > 0 && event != XMLStreamConstants.CHARACTERS
+                        && event != XMLStreamConstants.CDATA) {
+                    matchText(text.toString());
+                    text.setLength(0);
+                }
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        final long state = startElement(states[depth]);
+                        if (++depth == states.length) {
+                            states = Arrays.copyOf(states, depth * 2);
+                            namespaceMarks = Arrays.copyOf(namespaceMarks, depth * 2);
+                        }
+                        states[depth] = state;
+                        namespaceMarks[depth] = namespaces.size();
+                        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                            namespaces.add(nonNull(reader.getNamespacePrefix(i)));
+                            namespaces.add(nonNull(reader.getNamespaceURI(i)));
+                        }
+                        if (open != null) {
+                            open.copyStartElement(reader);
+                        }
+                        if ((state & selected) != 0) {
+                            if (kind == Kind.ELEMENT && open != null) {
+                                pending.add(open.nest());
+                            } else if (kind == Kind.ELEMENT) {
+                                open = new Capture(processor, depth);
+                                open.copyStartElement(reader);
+                                open.declareInScope(namespaces, reader.getNamespaceCount());
+                                pending.add(open);
+                            } else if (kind == Kind.ATTRIBUTE) {
+                                matchAttribute();
+                            }
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (open != null) {
+                            open.writer.writeEndElement();
+                            if (open.depth == depth) {
+                                open.complete();
+                                open = null;
+                            }
+                        }
+                        namespaces.subList(namespaceMarks[depth], namespaces.size()).clear();
+                        depth--;
+                        flush();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (open != null) {
+                            open.writer.writeCharacters(reader.getText());
+                        }
+                        if (kind == Kind.TEXT && (states[depth] & selected) != 0) {
+                            text.append(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        if (open != null) {
+                            open.writer.writeComment(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        if (open != null) {
+                            open.writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        }
+                        break;
+                    default:
+                        // ignorable whitespace, dtd and document events aren't part of matches
+                        break;
+                }
+            }
+        }
+
+        private long startElement(long parent) {
+            long state = 0;
+            for (int i = 0; i < steps.length; i++) {
+                if ((parent & (1L << i)) != 0) {
+                    if (steps[i].descendant) {
+                        state |= 1L << i;
+                    }
+                    if (steps[i].matches(reader)) {
+                        state |= 1L << (i + 1);
+                    }
+                }
+            }
+            return state;
+        }
+
+        private void matchText(String value) throws XMLStreamException, SaxonApiException {
+            final Capture capture = new Capture(processor, depth);
+            capture.writer.writeCharacters(value);
+            capture.complete();
+            pending.add(capture);
+            flush();
+        }
+
+        private void matchAttribute() throws XMLStreamException, SaxonApiException {
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                if (attribute.equals(reader.getAttributeLocalName(i))
+                        && isEmpty(reader.getAttributeNamespace(i))) {
+                    final Capture capture = new Capture(processor, depth);
+                    capture.writer.writeStartElement("a");
+                    capture.writer.writeAttribute(attribute, reader.getAttributeValue(i));
+                    capture.writer.writeEndElement();
+                    capture.complete();
+                    pending.add(capture);
+                    flush();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Gives the complete matches, in document order.
+         */
+        private void flush() throws SaxonApiException {
+            while (!stopped && !pending.isEmpty() && pending.peekFirst().node != null) {
+                if (!matches.match(pending.removeFirst().node)) {
+                    stopped = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Match given once its node is known.
+     */
+    private abstract static class Match {
+        XdmNode node;
+    }
+
+    /**
+     * Element match nested in a capture, the element of its tree at a position in document order.
+     */
+    private static final class Nested extends Match {
+        private final int position;
+
+        private Nested(int position) {
+            this.position = position;
+        }
+    }
+
+    /**
+     * Tree of a match being built, with the matches nested in it.
+     */
+    private final class Capture extends Match {
+        private final BuildingStreamWriterImpl writer;
+        private final int depth;
+        private final List<Nested> nested = new ArrayList<>();
+        private int elements;
+
+        private Capture(Processor processor, int depth) throws SaxonApiException {
+            this.depth = depth;
+            writer = processor.newDocumentBuilder().newBuildingStreamWriter();
+            try {
+                writer.writeStartDocument();
+            } catch (XMLStreamException e) {
+                throw new SaxonApiException(e);
+            }
+        }
+
+        private void copyStartElement(XMLStreamReader reader) throws XMLStreamException {
+            elements++;
+            writer.writeStartElement(nonNull(reader.getPrefix()), reader.getLocalName(),
+                    nonNull(reader.getNamespaceURI()));
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                writer.writeNamespace(nonNull(reader.getNamespacePrefix(i)), nonNull(reader.getNamespaceURI(i)));
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                writer.writeAttribute(nonNull(reader.getAttributePrefix(i)), nonNull(reader.getAttributeNamespace(i)),
+                        reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+
+        /**
+         * Declares the namespaces in scope of the element just copied, as its tree would keep them.
+         *
+         * @param namespaces prefixes and uris of the declarations in scope, outermost first
+         * @param own number of declarations of the element itself, already copied
+         */
+        private void declareInScope(List<String> namespaces, int own) throws XMLStreamException {
+            final Set<String> declared = new HashSet<>();
+            final Deque<Integer> inherited = new ArrayDeque<>();
+            for (int i = namespaces.size() - 2, n = 0; i >= 0; i -= 2, n++) {
+                if (declared.add(namespaces.get(i)) && n >= own && !namespaces.get(i + 1).isEmpty()) {
+                    inherited.push(i);
+                }
+            }
+            for (int i : inherited) {
+                writer.writeNamespace(namespaces.get(i), namespaces.get(i + 1));
+            }
+        }
+
+        /**
+         * @return the match of the element just copied
+         */
+        private Nested nest() {
+            final Nested match = new Nested(elements - 1);
+            nested.add(match);
+            return match;
+        }
+
+        /**
+         * Ends the tree, the match is its single child, or the attribute of that child. Nested matches are
+         * the descendants of that child at their positions.
+         */
+        private void complete() throws XMLStreamException, SaxonApiException {
+            writer.writeEndDocument();
+            writer.close();
+            final XdmNode child = (XdmNode) writer.getDocumentNode().axisIterator(Axis.CHILD).next();
+            if (kind == Kind.ATTRIBUTE) {
+                final XdmSequenceIterator attributes = child.axisIterator(Axis.ATTRIBUTE);
+                node = (XdmNode) attributes.next();
+            } else {
+                node = child;
+            }
+            if (!nested.isEmpty()) {
+                final XdmSequenceIterator descendants = child.axisIterator(Axis.DESCENDANT);
+                int position = 0;
+                for (Nested match : nested) {
+                    while (position < match.position) {
+                        final XdmNode descendant = (XdmNode) descendants.next();
+                        if (descendant.getNodeKind() == XdmNodeKind.ELEMENT && ++position == match.position) {
+                            match.node = descendant;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    /**
+     * Element step: axis, name test and attribute predicates.
+     */
+    private static final class Step {
+        private final boolean descendant;
+        private final String name;
+        private final List<Predicate> predicates = new ArrayList<>();
+
+        private Step(boolean descendant, String name) {
+            this.descendant = descendant;
+            this.name = name;
+        }
+
+        private boolean matches(XMLStreamReader reader) {
+            if (!"*".equals(name) && (!name.equals(reader.getLocalName()) || !isEmpty(reader.getNamespaceURI()))) {
+                return false;
+            }
+            for (Predicate predicate : predicates) {
+                if (!predicate.matches(reader)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Predicate {
+        private final String attribute;
+        private final String value;
+        private final boolean equal;
+
+        /**
+         * @param value compared value, null to test the presence of the attribute
+         */
+        private Predicate(String attribute, String value, boolean equal) {
+            this.attribute = attribute;
+            this.value = value;
+            this.equal = equal;
+        }
+
+        private boolean matches(XMLStreamReader reader) {
+            final String actual = reader.getAttributeValue("", attribute);
+            if (actual == null) {
+                return false;
+            }
+            return value == null || value.equals(actual) == equal;
+        }
+    }
+
+    /**
+     * Parser of the streamable subset, returns null as soon as the xpath leaves it.
+     */
+    private static final class Parser {
+        private final String xpath;
+        private int position;
+
+        private Parser(String xpath) {
+            this.xpath = xpath;
+        }
+
+        private StreamingXPath parse() {
+            final List<Step> steps = new ArrayList<>();
+            skipSpaces();
+            while (position < xpath.length()) {
+                final boolean descendant;
+                if (xpath.startsWith("//", position)) {
+                    descendant = true;
+                    position += 2;
+                } else if (xpath.startsWith("/", position)) {
+                    descendant = false;
+                    position++;
+                } else {
+                    return null;
+                }
+                skipSpaces();
+                if (xpath.startsWith("@", position) || xpath.startsWith("text()", position)) {
+                    return last(steps, descendant);
+                }
+                final String name = name(true);
+                if (name == null || steps.size() == MAX_STEPS) {
+                    return null;
+                }
+                final Step step = new Step(descendant, name);
+                skipSpaces();
+                while (xpath.startsWith("[", position)) {
+                    final Predicate predicate = predicate();
+                    if (predicate == null) {
+                        return null;
+                    }
+                    step.predicates.add(predicate);
+                    skipSpaces();
+                }
+                steps.add(step);
+            }
+            return steps.isEmpty() ? null : new StreamingXPath(steps, Kind.ELEMENT, null);
+        }
+
+        /**
+         * Parses a final <code>text()</code> or <code>@name</code> step.
+         */
+        private StreamingXPath last(List<Step> steps, boolean descendant) {
+            if (descendant || steps.isEmpty()) {
+                return null;
+            }
+            final StreamingXPath streamingXPath;
+            if (xpath.startsWith("@", position)) {
+                position++;
+                final String name = name(false);
+                if (name == null) {
+                    return null;
+                }
+                streamingXPath = new StreamingXPath(steps, Kind.ATTRIBUTE, name);
+            } else {
+                position += "text()".length();
+                streamingXPath = new StreamingXPath(steps, Kind.TEXT, null);
+            }
+            skipSpaces();
+            return position == xpath.length() ? streamingXPath : null;
+        }
+
+        /**
+         * Parses <code>[@name]</code>, <code>[@name = 'value']</code> or <code>[@name != 'value']</code>.
+         */
+        private Predicate predicate() {
+            position++;
+            skipSpaces();
+            if (!xpath.startsWith("@", position)) {
+                return null;
+            }
+            position++;
+            final String attribute = name(false);
+            if (attribute == null) {
+                return null;
+            }
+            skipSpaces();
+            String value = null;
+            boolean equal = true;
+            if (xpath.startsWith("=", position) || xpath.startsWith("!=", position)) {
+                equal = xpath.charAt(position) == '=';
+                position += equal ? 1 : 2;
+                skipSpaces();
+                value = literal();
+                if (value == null) {
+                    return null;
+                }
+                skipSpaces();
+            }
+            if (!xpath.startsWith("]", position)) {
+                return null;
+            }
+            position++;
+            return new Predicate(attribute, value, equal);
+        }
+
+        private String literal() {
+            if (position == xpath.length()) {
+                return null;
+            }
+            final char quote = xpath.charAt(position);
+            if (quote != '\'' && quote != '"') {
+                return null;
+            }
+            final int end = xpath.indexOf(quote, position + 1);
+            if (end < 0) {
+                return null;
+            }
+            final String literal = xpath.substring(position + 1, end);
+            position = end + 1;
+            return literal;
+        }
+
+        /**
+         * @return an unprefixed name, or <code>*</code> when allowed, null otherwise
+         */
+        private String name(boolean wildcard) {
+            if (wildcard && xpath.startsWith("*", position)) {
+                position++;
+                return "*";
+            }
+            final int start = position;
+            while (position < xpath.length() && isNameChar(xpath.charAt(position), position == start)) {
+                position++;
+            }
+            if (position == start || xpath.startsWith("(", position) || xpath.startsWith("::", position)) {
+                // function calls and explicit axes aren't streamable
+                return null;
+            }
+            return xpath.substring(start, position);
+        }
+
+        private static boolean isNameChar(char c, boolean first) {
+            return Character.isLetter(c) || c == '_' || !first && (Character.isDigit(c) || c == '-' || c == '.');
+        }
+
+        private void skipSpaces() {
+            while (position < xpath.length() && Character.isWhitespace(xpath.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
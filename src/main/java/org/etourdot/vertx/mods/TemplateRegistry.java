@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+/**
+ * Named stylesheets, xqueries, xpaths and schemas compiled once at module start.<p>
+ * Config is <code>{ "xslt": { name: template }, "xquery": { name: template }, "xpath": { name: template },
+ * "xsd": { name: template } }</code>
+ * where each template gives its source with exactly one of <code>"file"</code> (file system path),
+ * <code>"resource"</code> (classpath resource) or <code>"source"</code> (inline text), and optionally
+ * <code>"base_uri"</code>, <code>"namespaces"</code> and, for xpaths, the declared <code>"variables"</code>.
+ */
+class TemplateRegistry {
+
+    static final String XSLT = "xslt";
+    static final String XQUERY = "xquery";
+    static final String XPATH = "xpath";
+    static final String XSD = "xsd";
+    static final String FILE = "file";
+    static final String RESOURCE = "resource";
+    static final String SOURCE = "source";
+    static final String BASE_URI = "base_uri";
+    static final String NAMESPACES = "namespaces";
+    static final String VARIABLES = "variables";
+
+    private final ImmutableMap<String, EvaluatorPool<XsltExecutable, XsltTransformer>> xslts;
+    private final ImmutableMap<String, EvaluatorPool<XQueryExecutable, XQueryEvaluator>> xqueries;
+    private final ImmutableMap<String, EvaluatorPool<XPathExecutable, XPathSelector>> xpaths;
+    private final ImmutableMap<String, EvaluatorPool<Schema, Validator>> schemas;
+
+    /**
+     * @param resourceResolver resolver of schema includes and imports, null for the default one
+     */
+    TemplateRegistry(Processor processor, ResourceResolver resourceResolver, JsonObject config, int poolSize)
+            throws TemplateException {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        final ImmutableMap.Builder<String, EvaluatorPool<XsltExecutable, XsltTransformer>> xsltBuilder =
+                ImmutableMap.builder();
+        final JsonObject xsltConfig = config.getObject(XSLT, new JsonObject());
+        for (String name : xsltConfig.getFieldNames()) {
+            final JsonObject template = xsltConfig.getObject(name);
+            try {
+                xsltBuilder.put(name, EvaluatorPool.of(processor.newXsltCompiler().compile(source(template)),
+                        poolSize));
+            } catch (SaxonApiException | IOException e) {
+                throw new TemplateException(XSLT, name, e);
+            }
+        }
+        xslts = xsltBuilder.build();
+
+        final ImmutableMap.Builder<String, EvaluatorPool<XQueryExecutable, XQueryEvaluator>> xqueryBuilder =
+                ImmutableMap.builder();
+        final JsonObject xqueryConfig = config.getObject(XQUERY, new JsonObject());
+        for (String name : xqueryConfig.getFieldNames()) {
+            final JsonObject template = xqueryConfig.getObject(name);
+            try {
+                final XQueryExecutable executable = XmlQueryHandler.compile(processor, readSource(template),
+                        baseUri(template), template.getObject(NAMESPACES));
+                xqueryBuilder.put(name, EvaluatorPool.of(executable, poolSize));
+            } catch (SaxonApiException | IOException | URISyntaxException e) {
+                throw new TemplateException(XQUERY, name, e);
+            }
+        }
+        xqueries = xqueryBuilder.build();
+
+        final ImmutableMap.Builder<String, EvaluatorPool<XPathExecutable, XPathSelector>> xpathBuilder =
+                ImmutableMap.builder();
+        final JsonObject xpathConfig = config.getObject(XPATH, new JsonObject());
+        for (String name : xpathConfig.getFieldNames()) {
+            final JsonObject template = xpathConfig.getObject(name);
+            try {
+                final List<String> variables = new ArrayList<>();
+                for (Object variable : template.getArray(VARIABLES, new JsonArray())) {
+                    variables.add((String) variable);
+                }
+                final XPathExecutable executable = XmlXPathHandler.compile(processor, readSource(template),
+                        baseUri(template), template.getObject(NAMESPACES), variables);
+                xpathBuilder.put(name, EvaluatorPool.of(executable, poolSize));
+            } catch (SaxonApiException | IOException | URISyntaxException e) {
+                throw new TemplateException(XPATH, name, e);
+            }
+        }
+        xpaths = xpathBuilder.build();
+
+        final ImmutableMap.Builder<String, EvaluatorPool<Schema, Validator>> xsdBuilder = ImmutableMap.builder();
+        final JsonObject xsdConfig = config.getObject(XSD, new JsonObject());
+        for (String name : xsdConfig.getFieldNames()) {
+            final JsonObject template = xsdConfig.getObject(name);
+            try {
+                xsdBuilder.put(name, EvaluatorPool.of(XmlValidationHandler.compile(source(template),
+                        resourceResolver), poolSize));
+            } catch (SAXException | IOException e) {
+                throw new TemplateException(XSD, name, e);
+            }
+        }
+        schemas = xsdBuilder.build();
+    }
+
+    EvaluatorPool<XsltExecutable, XsltTransformer> getXslt(String name) {
+        return xslts.get(name);
+    }
+
+    EvaluatorPool<XQueryExecutable, XQueryEvaluator> getXQuery(String name) {
+        return xqueries.get(name);
+    }
+
+    EvaluatorPool<XPathExecutable, XPathSelector> getXPath(String name) {
+        return xpaths.get(name);
+    }
+
+    EvaluatorPool<Schema, Validator> getXsd(String name) {
+        return schemas.get(name);
+    }
+
+    JsonObject names() {
+        return new JsonObject()
+                .putArray(XSLT, new JsonArray(xslts.keySet().toArray()))
+                .putArray(XQUERY, new JsonArray(xqueries.keySet().toArray()))
+                .putArray(XPATH, new JsonArray(xpaths.keySet().toArray()))
+                .putArray(XSD, new JsonArray(schemas.keySet().toArray()));
+    }
+
+    private static URL locate(JsonObject template) throws IOException {
+        if (template.containsField(FILE)) {
+            return new File(template.getString(FILE)).toURI().toURL();
+        }
+        if (template.containsField(RESOURCE)) {
+            final String resource = template.getString(RESOURCE);
+            final URL url = TemplateRegistry.class.getClassLoader().getResource(resource);
+            if (url == null) {
+                throw new IOException("resource " + resource + " not found");
+            }
+            return url;
+        }
+        throw new IOException("file, resource or source must be specified");
+    }
+
+    private static StreamSource source(JsonObject template) throws IOException {
+        if (template.containsField(SOURCE)) {
+            return new StreamSource(new StringReader(template.getString(SOURCE)), template.getString(BASE_URI));
+        }
+        return new StreamSource(locate(template).toExternalForm());
+    }
+
+    private static String readSource(JsonObject template) throws IOException {
+        if (template.containsField(SOURCE)) {
+            return template.getString(SOURCE);
+        }
+        return Resources.toString(locate(template), Charsets.UTF_8);
+    }
+
+    private static String baseUri(JsonObject template) throws IOException {
+        if (template.containsField(BASE_URI) || template.containsField(SOURCE)) {
+            return template.getString(BASE_URI);
+        }
+        return locate(template).toExternalForm();
+    }
+
+    /**
+     * Raised when a template can't be loaded or compiled, module deployment then fails.
+     */
+    static class TemplateException extends Exception {
+        TemplateException(String kind, String name, Throwable cause) {
+            super(kind + " template " + name + ": " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import net.sf.saxon.om.TreeModel;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.WhitespaceStrippingPolicy;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLInputFactory;
+
+/**
+ * Document builders of source trees, configured once per tree settings and shared.<p>
+ * Settings are <code>{ "model": "tiny" | "tiny_condensed" | "linked", "strip_whitespace": "none" |
+ * "ignorable" | "all", "line_numbering": boolean, "dtd_validation": boolean }</code>, given by the module
+ * config and overridden field by field by the <code>tree</code> of a request. A configured builder only
+ * reads its settings while building, so it is shared by concurrent requests.<p>
+ * Documents read as StAX events by streaming evaluations load DTDs and external entities like the parsers
+ * of the builders, through the same resolver.
+ */
+class TreeBuilders {
+
+    static final String TREE = "tree";
+    static final String MODEL = "model";
+    static final String STRIP_WHITESPACE = "strip_whitespace";
+    static final String LINE_NUMBERING = "line_numbering";
+    static final String DTD_VALIDATION = "dtd_validation";
+
+    private static final String[] SETTINGS = {MODEL, STRIP_WHITESPACE, LINE_NUMBERING, DTD_VALIDATION};
+
+    private final Processor processor;
+    private final JsonObject settings;
+    private final DocumentBuilder defaultBuilder;
+    private final ConcurrentMap<String, DocumentBuilder> builders = new ConcurrentHashMap<>();
+    private final XMLInputFactory inputFactory;
+
+    /**
+     * @param resourceResolver resolver of DTDs and external entities, null for the default resolution
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    TreeBuilders(Processor processor, ResourceResolver resourceResolver, JsonObject config) {
+        this.processor = processor;
+        settings = config == null ? new JsonObject() : config;
+        defaultBuilder = newBuilder(settings);
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, true);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, true);
+        inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        if (resourceResolver != null) {
+            inputFactory.setXMLResolver(resourceResolver);
+        }
+    }
+
+    /**
+     * @param overrides <code>tree</code> settings of a request, null for the module settings
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    DocumentBuilder get(JsonObject overrides) {
+        if (overrides == null || overrides.size() == 0) {
+            return defaultBuilder;
+        }
+        final JsonObject merged = settings.copy();
+        for (String name : overrides.getFieldNames()) {
+            merged.putValue(name, overrides.getValue(name));
+        }
+        final StringBuilder key = new StringBuilder();
+        for (String name : SETTINGS) {
+            key.append(merged.getValue(name)).append('|');
+        }
+        DocumentBuilder builder = builders.get(key.toString());
+        if (builder == null) {
+            // settings are bounded, at worst every combination is built once
+            final DocumentBuilder created = newBuilder(merged);
+            builder = builders.putIfAbsent(key.toString(), created);
+            if (builder == null) {
+                builder = created;
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * @param overrides <code>tree</code> settings of a request, null for the module settings
+     * @return the StAX factory reading documents as the builder of these settings parses them, null when
+     * the settings change the nodes of the tree: DTD validation or whitespace stripping other than ignorable
+     */
+    XMLInputFactory getInputFactory(JsonObject overrides) {
+        final JsonObject merged = settings.copy();
+        if (overrides != null) {
+            for (String name : overrides.getFieldNames()) {
+                merged.putValue(name, overrides.getValue(name));
+            }
+        }
+        if (merged.getBoolean(DTD_VALIDATION, false)
+                || !"ignorable".equals(merged.getString(STRIP_WHITESPACE, "ignorable"))) {
+            return null;
+        }
+        return inputFactory;
+    }
+
+    JsonObject stats() {
+        return settings.copy().putNumber("builders", builders.size() + 1);
+    }
+
+    private DocumentBuilder newBuilder(JsonObject settings) {
+        for (String name : settings.getFieldNames()) {
+            if (!Arrays.asList(SETTINGS).contains(name)) {
+                throw new IllegalArgumentException("unknown tree setting " + name);
+            }
+        }
+        final DocumentBuilder builder = processor.newDocumentBuilder();
+        final String model = settings.getString(MODEL);
+        if (model != null) {
+            builder.setTreeModel(treeModel(model));
+        }
+        final String stripWhitespace = settings.getString(STRIP_WHITESPACE);
+        if (stripWhitespace != null) {
+            builder.setWhitespaceStrippingPolicy(whitespaceStrippingPolicy(stripWhitespace));
+        }
+        builder.setLineNumbering(settings.getBoolean(LINE_NUMBERING, false));
+        builder.setDTDValidation(settings.getBoolean(DTD_VALIDATION, false));
+        return builder;
+    }
+
+    private static TreeModel treeModel(String model) {
+        switch (model) {
+            case "tiny":
+                return TreeModel.TINY_TREE;
+            case "tiny_condensed":
+                return TreeModel.TINY_TREE_CONDENSED;
+            case "linked":
+                return TreeModel.LINKED_TREE;
+            default:
+                throw new IllegalArgumentException("unknown tree model " + model);
+        }
+    }
+
+    private static WhitespaceStrippingPolicy whitespaceStrippingPolicy(String policy) {
+        switch (policy) {
+            case "none":
+                return WhitespaceStrippingPolicy.NONE;
+            case "ignorable":
+                return WhitespaceStrippingPolicy.IGNORABLE;
+            case "all":
+                return WhitespaceStrippingPolicy.ALL;
+            default:
+                throw new IllegalArgumentException("unknown strip_whitespace policy " + policy);
+        }
+    }
+}
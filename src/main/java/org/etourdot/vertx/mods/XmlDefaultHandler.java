@@ -1,15 +1,220 @@
 package org.etourdot.vertx.mods;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.MapMaker;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
+import org.xml.sax.InputSource;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
 
 /**
  * Created by Emmanuel TOURDOT on 01/09/2014.
  */
 abstract class XmlDefaultHandler implements Handler<Message<?>> {
+
+    static final String XML = "xml";
+    static final String URL_XML = "url_xml";
+    static final String RESULT_TYPE = "result_type";
+    static final String RESULT = "result";
+
+    private final String operation;
+    private final ResourceFetcher fetcher;
+    private final RequestExecutors.Pool executor;
+    private final RequestTimeouts timeouts;
+    private final RequestMetrics metrics;
+    private final TreeBuilders treeBuilders;
+    private final ParamValues paramValues;
+    private final ConcurrentMap<Message<?>, XmlRequest> requests = new MapMaker().weakKeys().makeMap();
+
+    XmlDefaultHandler() {
+        operation = null;
+        fetcher = null;
+        executor = null;
+        timeouts = null;
+        metrics = null;
+        treeBuilders = null;
+        paramValues = null;
+    }
+
+    /**
+     * @param operation name of the operation in executors and metrics
+     * @param fetcher fetcher of the urls of requests, null to leave them to the parsers
+     * @param executor executor processing requests, null to process them on the calling thread
+     */
+    XmlDefaultHandler(String operation, SharedResources resources, ResourceFetcher fetcher,
+                      RequestExecutors.Pool executor) {
+        this.operation = operation;
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.timeouts = resources.timeouts;
+        this.metrics = resources.metrics;
+        this.treeBuilders = resources.treeBuilders;
+        this.paramValues = resources.paramValues;
+    }
+
     public abstract void handle(Message<?> message);
 
+    /**
+     * @return the request of a message, null when it is an invalid envelope, the error is then replied
+     */
+    XmlRequest newRequest(Message message) {
+        try {
+            return XmlRequest.of(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Fetches urls of a request without blocking, then processes the request with {@link #execute}. Urls
+     * which can't be fetched asynchronously, or every url when no fetcher is configured, are left to the parsers.
+     * Replies an error, and doesn't process the request, if a fetch fails.
+     */
+    void fetch(final Message message, final XmlRequest request, final Handler<XmlRequest> next, String... urls) {
+        final Set<String> pending = new HashSet<>();
+        if (fetcher != null) {
+            for (String url : urls) {
+                if (ResourceFetcher.accepts(url)) {
+                    pending.add(url);
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            execute(message, request, next);
+            return;
+        }
+        final boolean[] failed = {false};
+        for (final String url : new ArrayList<>(pending)) {
+            fetcher.fetch(url, new Handler<AsyncResult<Buffer>>() {
+                @Override
+                public void handle(AsyncResult<Buffer> result) {
+                    if (failed[0]) {
+                        return;
+                    }
+                    if (result.failed()) {
+                        failed[0] = true;
+                        sendError(message, result.cause().getMessage());
+                        return;
+                    }
+                    request.putFetched(url, result.result());
+                    pending.remove(url);
+                    if (pending.isEmpty()) {
+                        execute(message, request, next);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Processes a request on the executor of the handler, or on the calling thread when it has none.
+     * Replies <code>busy</code> when the executor queue is full. The deadline of the request starts
+     * before it is queued, once expired the request is replied a timeout error and its processing is
+     * skipped or interrupted. An output left unfinished by the request is aborted. The timings of the
+     * request are recorded in the metrics.
+     */
+    void execute(final Message message, final XmlRequest request, final Handler<XmlRequest> next) {
+        final RequestMetrics.Sample sample = metrics.start(operation, templateOf(request.body()));
+        final RequestTimeouts.Deadline deadline = timeouts.newDeadline(request.body());
+        request.setSample(sample);
+        request.setDeadline(deadline);
+        requests.put(message, request);
+        timeouts.schedule(deadline, new Handler<String>() {
+            @Override
+            public void handle(String error) {
+                sample.setStatus("timeout");
+                message.reply(new JsonObject().putString("status", "error").putString("message", error)
+                        .putBoolean("timeout", true));
+            }
+        });
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                sample.lap(RequestMetrics.QUEUE);
+                deadline.attach();
+                try {
+                    if (!deadline.isExpired()) {
+                        next.handle(request);
+                    }
+                } catch (RequestTimeouts.Expired e) {
+                    timeouts.aborted();
+                    abortOutput(request, e.getMessage());
+                } finally {
+                    abortOutput(request, "request aborted");
+                    deadline.detach();
+                    requests.remove(message);
+                    metrics.finish(sample);
+                }
+            }
+        };
+        if (executor == null) {
+            task.run();
+        } else if (!executor.submit(task)) {
+            sendStatus("busy", message, new JsonObject().putString("message",
+                    executor.getName() + " queue is full"));
+            deadline.detach();
+            requests.remove(message);
+            metrics.finish(sample);
+        }
+    }
+
+    /**
+     * @return the name of the program of a request in metrics, null for an inline program
+     */
+    String templateOf(JsonObject body) {
+        return body.getString("template");
+    }
+
+    /**
+     * @return false when the request has already been replied a timeout error
+     */
+    private boolean claimReply(Message<?> message, String status) {
+        final XmlRequest request = requests.get(message);
+        if (request == null) {
+            return true;
+        }
+        if (!request.getDeadline().claimReply()) {
+            return false;
+        }
+        request.getSample().setStatus(status);
+        return true;
+    }
+
+    /**
+     * Aborts the output of a request which fails before it is finished, see {@link XmlOutput#abort}.
+     */
+    private static void abortOutput(XmlRequest request, String error) {
+        if (request != null && request.getOutput() != null) {
+            request.getOutput().abort(error);
+        }
+    }
+
     void sendOK(Message<JsonObject> message) {
         sendOK(message, null);
     }
@@ -23,7 +228,12 @@ abstract class XmlDefaultHandler implements Handler<Message<?>> {
             json = new JsonObject();
         }
         json.putString("status", status);
-        message.reply(json);
+        if (!"ok".equals(status)) {
+            abortOutput(requests.get(message), json.getString("message"));
+        }
+        if (claimReply(message, status)) {
+            message.reply(json);
+        }
     }
 
     void sendOK(Message<JsonObject> message, JsonObject json) {
@@ -36,7 +246,128 @@ abstract class XmlDefaultHandler implements Handler<Message<?>> {
 
     void sendError(Message<JsonObject> message, String error, Exception e) {
         JsonObject json = new JsonObject().putString("status", "error").putString("message", error);
-        message.reply(json);
+        abortOutput(requests.get(message), error);
+        if (claimReply(message, "error")) {
+            message.reply(json);
+        }
     }
 
+    /**
+     * Returns the source of the document of a request: the body of a Buffer message, the
+     * <code>xml</code> string or the <code>url_xml</code> url. Replies an error and returns null
+     * when more than one is given.
+     */
+    Source getXmlSource(Message message, XmlRequest request) {
+        final String xml = request.body().getString(XML);
+        final String url_xml = request.body().getString(URL_XML);
+        if (request.hasDocument()) {
+            if (!Strings.isNullOrEmpty(xml) || !Strings.isNullOrEmpty(url_xml)) {
+                sendError(message, "buffer either xml or url_xml must be specified");
+                return null;
+            }
+            return new StreamSource(request.openDocument());
+        }
+        if (!Strings.isNullOrEmpty(xml)) {
+            if (!Strings.isNullOrEmpty(url_xml)) {
+                sendError(message, "xml either url_xml must be specified");
+                return null;
+            }
+            return new StreamSource(new StringReader(xml));
+        }
+        final InputStream fetched = request.openFetched(url_xml);
+        if (fetched != null) {
+            return new StreamSource(fetched, url_xml);
+        }
+        return new SAXSource(new InputSource(url_xml));
+    }
+
+    /**
+     * Returns the document of a request as a tree, documents given by an absolute <code>url_xml</code> come
+     * from the document cache when it is enabled. Replies an error and returns null like {@link #getXmlSource}.
+     */
+    XdmNode getXmlDocument(Message message, XmlRequest request, DocumentCache documentCache)
+            throws SaxonApiException {
+        if (isCached(documentCache, request)) {
+            return documentCache.get(request.body().getString(URL_XML));
+        }
+        final Source source = getXmlSource(message, request);
+        return source == null ? null : getTreeBuilder(request.body()).build(source);
+    }
+
+    /**
+     * @return true if the document of a request is given by an url of the document cache. Cached documents are
+     * built with the module tree settings, so a request overriding them with its own <code>tree</code> parses
+     * its document
+     */
+    static boolean isCached(DocumentCache documentCache, XmlRequest request) {
+        final JsonObject tree = request.body().getObject(TreeBuilders.TREE);
+        return documentCache != null && !request.hasDocument() && Strings.isNullOrEmpty(request.body().getString(XML))
+                && DocumentCache.accepts(request.body().getString(URL_XML)) && (tree == null || tree.size() == 0);
+    }
+
+    /**
+     * @return the document builder of the <code>tree</code> settings of a request
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    DocumentBuilder getTreeBuilder(JsonObject body) {
+        return treeBuilders.get(body.getObject(TreeBuilders.TREE));
+    }
+
+    /**
+     * @return the StAX factory reading the document of a request like its tree builder, null when its
+     * <code>tree</code> settings need a tree
+     */
+    XMLInputFactory getInputFactory(JsonObject body) {
+        return treeBuilders.getInputFactory(body.getObject(TreeBuilders.TREE));
+    }
+
+    /**
+     * @return the typed values of a <code>params</code> list by name, see {@link ParamValues}
+     * @throws SaxonApiException if a value can't be cast to its type or a document can't be parsed
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    Map<QName, XdmValue> getParams(JsonArray params) throws SaxonApiException {
+        return paramValues.of(params);
+    }
+
+    /**
+     * Ends the output of a request and replies its result, as a JSON message or as a binary envelope.
+     */
+    void sendOutput(Message message, XmlOutput output) {
+        if (output.isBuffer()) {
+            if (claimReply(message, "ok")) {
+                message.reply(output.getBuffer());
+            }
+        } else {
+            sendOK(message, output.finish());
+        }
+    }
+
+    /**
+     * @return the type of the JSON result of a request, null when its result is serialized to its output
+     * @throws IllegalArgumentException if the type is unknown or given with an output mode
+     */
+    static ResultType resultType(JsonObject body) {
+        final String type = body.getString(RESULT_TYPE);
+        if (type == null) {
+            return null;
+        }
+        if (body.containsField(XmlOutput.OUTPUT_MODE)) {
+            throw new IllegalArgumentException("result_type either output_mode must be specified");
+        }
+        return ResultType.of(type);
+    }
+
+    /**
+     * Names of the parameters of a <code>params</code> list, sorted.
+     */
+    static SortedSet<String> paramNames(JsonArray params) {
+        final SortedSet<String> names = new TreeSet<>();
+        if (params != null) {
+            for (Object param : params) {
+                names.addAll(((JsonObject) param).getFieldNames());
+            }
+        }
+        return names;
+    }
 }
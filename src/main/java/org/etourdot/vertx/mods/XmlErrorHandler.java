@@ -1,52 +1,125 @@
 package org.etourdot.vertx.mods;
 
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 /**
- * Created by Emmanuel TOURDOT on 10/09/2014.
+ * Created by Emmanuel TOURDOT on 10/09/2014.<p>
+ * Collects validation errors as a bounded report. Parsing is aborted once <code>maxErrors</code>
+ * errors (warnings excepted) have been reported or the report has reached <code>maxReportSize</code>
+ * characters (the last message being truncated), by throwing an {@link AbortException}.
  */
 class XmlErrorHandler implements ErrorHandler {
 
-    private final StringBuffer buffer;
+    static final int DEFAULT_MAX_ERRORS = 0;
+    static final int DEFAULT_MAX_REPORT_SIZE = 0;
+
+    private final int maxErrors;
+    private final int maxReportSize;
+    private final StringBuilder buffer;
+    private final JsonArray errors;
+    private int errorCount;
+    private boolean aborted;
+    private boolean fatal;
 
     public XmlErrorHandler() {
-        buffer = new StringBuffer();
+        this(DEFAULT_MAX_ERRORS, DEFAULT_MAX_REPORT_SIZE);
+    }
+
+    /**
+     * @param maxErrors number of errors after which parsing is aborted, 0 for no limit
+     * @param maxReportSize maximum number of characters of the report, 0 for no limit
+     */
+    public XmlErrorHandler(int maxErrors, int maxReportSize) {
+        this.maxErrors = maxErrors;
+        this.maxReportSize = maxReportSize;
+        buffer = new StringBuilder();
+        errors = new JsonArray();
     }
 
     @Override
     public void warning(SAXParseException exception) throws SAXException {
-        buffer.append("WARNING");
-        if (exception.getCause() != null) {
-            buffer.append(exception.getCause().getMessage());
-        } else {
-            buffer.append(exception.getMessage());
-        }
+        report("WARNING", exception);
     }
 
     @Override
     public void error(SAXParseException exception) throws SAXException {
-        buffer.append("ERROR");
-        if (exception.getCause() != null) {
-            buffer.append(exception.getCause().getMessage());
-        } else {
-            buffer.append(exception.getMessage());
-        }
+        errorCount++;
+        report("ERROR", exception);
     }
 
     @Override
     public void fatalError(SAXParseException exception) throws SAXException {
-        buffer.append("FATAL");
-        if (exception.getCause() != null) {
-            buffer.append(exception.getCause().getMessage());
-        } else {
-            buffer.append(exception.getMessage());
-        }
+        errorCount++;
+        fatal = true;
+        report("FATAL", exception);
     }
 
     public String getErrors() {
         return buffer.toString();
     }
 
+    /**
+     * @return the reported errors as <code>{ "severity", "line", "column", "system_id", "message" }</code> objects
+     */
+    JsonArray getErrorArray() {
+        return errors;
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * @return true when an exception stopping a parse is an abort or follows a fatal error, that are already
+     * in the report, false when it has to be replied as the error of the request. Parsers rethrow fatal
+     * errors as new exceptions, they are recognized by the fatal error having been reported.
+     */
+    boolean isReported(Throwable exception) {
+        if (fatal) {
+            return true;
+        }
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AbortException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void report(String severity, SAXParseException exception) throws SAXException {
+        String message = exception.getCause() != null
+                ? exception.getCause().getMessage() : exception.getMessage();
+        boolean full = false;
+        if (maxReportSize > 0 && message != null) {
+            final int room = Math.max(0, maxReportSize - buffer.length() - severity.length());
+            if (message.length() > room) {
+                message = message.substring(0, room);
+                full = true;
+            }
+        }
+        buffer.append(severity).append(message);
+        errors.addObject(new JsonObject()
+                .putString("severity", severity.toLowerCase())
+                .putNumber("line", exception.getLineNumber())
+                .putNumber("column", exception.getColumnNumber())
+                .putString("system_id", exception.getSystemId())
+                .putString("message", message));
+        if (full || (maxErrors > 0 && errorCount >= maxErrors)) {
+            aborted = true;
+            throw new AbortException(exception);
+        }
+    }
+
+    /**
+     * Thrown to stop parsing once the error limits are reached.
+     */
+    static class AbortException extends SAXException {
+        AbortException(SAXParseException cause) {
+            super("validation aborted", cause);
+        }
+    }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.base.Strings;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.Serializer;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Destination of the result of a request, chosen by its <code>output_mode</code>:<p>
+ * <ul>
+ * <li><code>string</code> (default): result is serialized to a String and replied in the
+ * <code>output</code> field of a JSON message</li>
+ * <li><code>buffer</code>: result is serialized in UTF-8 straight into a Buffer replied as a binary
+ * envelope (see {@link XmlRequest}) whose header is <code>{"status": "ok"}</code></li>
+ * <li><code>chunked</code>: result is sent as it is produced to <code>reply_address</code> as a
+ * sequence of Buffer chunks (see {@link ChunkedOutputStream}), the reply only gives counts</li>
+ * <li><code>file</code>: result is written to <code>output_file</code>, relative to the configured
+ * output directory</li>
+ * </ul>
+ */
+final class XmlOutput {
+
+    static final String OUTPUT_MODE = "output_mode";
+    static final String REPLY_ADDRESS = "reply_address";
+    static final String CHUNK_SIZE = "chunk_size";
+    static final String OUTPUT_FILE = "output_file";
+    static final String MODE_STRING = "string";
+    static final String MODE_BUFFER = "buffer";
+    static final String MODE_CHUNKED = "chunked";
+    static final String MODE_FILE = "file";
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final JsonObject OK_HEADER = new JsonObject().putString("status", "ok");
+
+    private final String mode;
+    private StringWriter writer;
+    private Buffer buffer;
+    private ChunkedOutputStream chunked;
+    private File file;
+    private boolean ended;
+
+    private XmlOutput(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Creates the output of a request, which is aborted if the request fails before it is finished.
+     * @param outputDirectory directory of <code>file</code> mode, null when that mode is disabled
+     * @throws IllegalArgumentException if the output mode is unknown or its fields are invalid
+     */
+    static XmlOutput of(XmlRequest request, EventBus eventBus, File outputDirectory) {
+        final XmlOutput output = of(request.body(), eventBus, outputDirectory);
+        request.setOutput(output);
+        return output;
+    }
+
+    private static XmlOutput of(JsonObject messageBody, EventBus eventBus, File outputDirectory) {
+        final String mode = messageBody.getString(OUTPUT_MODE, MODE_STRING);
+        final XmlOutput output = new XmlOutput(mode);
+        switch (mode) {
+            case MODE_STRING:
+                return ofString();
+            case MODE_BUFFER:
+                output.buffer = XmlRequest.envelopeHeader(OK_HEADER);
+                break;
+            case MODE_CHUNKED:
+                final String address = messageBody.getString(REPLY_ADDRESS);
+                if (Strings.isNullOrEmpty(address)) {
+                    throw new IllegalArgumentException("reply_address must be specified in chunked output mode");
+                }
+                final int chunkSize = messageBody.getInteger(CHUNK_SIZE, DEFAULT_CHUNK_SIZE);
+                if (chunkSize <= 0) {
+                    throw new IllegalArgumentException("chunk_size must be positive");
+                }
+                output.chunked = new ChunkedOutputStream(eventBus, address, chunkSize);
+                break;
+            case MODE_FILE:
+                output.file = resolve(outputDirectory, messageBody.getString(OUTPUT_FILE));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown output_mode " + mode);
+        }
+        return output;
+    }
+
+    /**
+     * Creates an output in <code>string</code> mode.
+     */
+    static XmlOutput ofString() {
+        final XmlOutput output = new XmlOutput(MODE_STRING);
+        output.writer = new StringWriter();
+        return output;
+    }
+
+    boolean isBuffer() {
+        return buffer != null;
+    }
+
+    /**
+     * Creates a serializer, output properties are given by their xsl:output name (e.g. "indent").
+     */
+    Serializer newSerializer(Processor processor, JsonObject outputProperties) {
+        final Serializer serializer;
+        if (writer != null) {
+            serializer = processor.newSerializer(writer);
+        } else if (buffer != null) {
+            serializer = processor.newSerializer(new BufferOutputStream(buffer));
+        } else if (chunked != null) {
+            serializer = processor.newSerializer(chunked);
+        } else {
+            serializer = processor.newSerializer(file);
+        }
+        if (outputProperties != null) {
+            for (String name : outputProperties.getFieldNames()) {
+                serializer.setOutputProperty(Serializer.Property.valueOf(name.toUpperCase().replace('-', '_')),
+                        String.valueOf(outputProperties.getValue(name)));
+            }
+        }
+        if (buffer != null || chunked != null) {
+            serializer.setOutputProperty(Serializer.Property.ENCODING, "UTF-8");
+        }
+        return serializer;
+    }
+
+    /**
+     * @return the envelope in buffer mode
+     */
+    Buffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Ends the output and returns the fields of the JSON reply (buffer mode excepted).
+     */
+    JsonObject finish() {
+        ended = true;
+        final JsonObject reply = new JsonObject();
+        switch (mode) {
+            case MODE_CHUNKED:
+                chunked.close();
+                reply.putNumber("chunks", chunked.getChunks()).putNumber("bytes", chunked.getBytes());
+                break;
+            case MODE_FILE:
+                reply.putString(OUTPUT_FILE, file.getPath()).putNumber("bytes", file.length());
+                break;
+            case MODE_STRING:
+                reply.putString("output", writer.toString());
+                break;
+            default:
+                break;
+        }
+        return reply;
+    }
+
+    /**
+     * Ends an output which isn't finished after a failure: in chunked mode the last chunk carries the error,
+     * in file mode the partial file is deleted.
+     */
+    void abort(String error) {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        if (chunked != null) {
+            chunked.abort(error);
+        } else if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static File resolve(File outputDirectory, String outputFile) {
+        if (outputDirectory == null) {
+            throw new IllegalArgumentException("file output mode is disabled, output_directory is not configured");
+        }
+        if (Strings.isNullOrEmpty(outputFile)) {
+            throw new IllegalArgumentException("output_file must be specified in file output mode");
+        }
+        try {
+            final File file = new File(outputDirectory, outputFile).getCanonicalFile();
+            if (!file.getPath().startsWith(outputDirectory.getCanonicalPath() + File.separator)) {
+                throw new IllegalArgumentException("output_file must be inside output_directory");
+            }
+            return file;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.base.Strings;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
+/**
+ * XML Module<p> Please see the busmods manual for a full description<p>
+ * Runs an ordered list of validation, transform, query and xpath steps on a document parsed once, the
+ * tree produced by a step is the document of the next one. Steps take the fields of the request of their
+ * operation, the last step writes the output of the pipeline.
+ */
+public class XmlPipelineHandler extends XmlDefaultHandler {
+
+    public static final String STEPS = "steps";
+    public static final String OPERATION = "operation";
+    public static final String XML = XmlDefaultHandler.XML;
+    public static final String URL_XML = XmlDefaultHandler.URL_XML;
+    public static final String RESULT_TYPE = XmlDefaultHandler.RESULT_TYPE;
+    public static final String RESULT = XmlDefaultHandler.RESULT;
+    public static final String OUTPUT_MODE = XmlOutput.OUTPUT_MODE;
+    public static final String REPLY_ADDRESS = XmlOutput.REPLY_ADDRESS;
+    public static final String CHUNK_SIZE = XmlOutput.CHUNK_SIZE;
+    public static final String OUTPUT_FILE = XmlOutput.OUTPUT_FILE;
+    public static final String TIMEOUT = RequestTimeouts.TIMEOUT;
+
+    private final Processor processor;
+    private final CompilationCache compilationCache;
+    private final DocumentCache documentCache;
+    private final ParserPool parserPool;
+    private final ResourceResolver resourceResolver;
+    private final EventBus eventBus;
+    private final File outputDirectory;
+    private final XmlValidationHandler validationHandler;
+    private final XmlTransformHandler transformHandler;
+    private final XmlQueryHandler queryHandler;
+    private final XmlXPathHandler xpathHandler;
+
+    /**
+     * @param validationHandler handler whose schemas are used by validation steps, the same goes for the
+     *                          other operations
+     */
+    public XmlPipelineHandler(SharedResources resources, EventBus eventBus, ResourceFetcher fetcher,
+                              RequestExecutors.Pool executor, XmlValidationHandler validationHandler,
+                              XmlTransformHandler transformHandler, XmlQueryHandler queryHandler,
+                              XmlXPathHandler xpathHandler) {
+        super(RequestExecutors.PIPELINE, resources, fetcher, executor);
+        this.processor = resources.processor;
+        this.compilationCache = resources.compilationCache;
+        this.documentCache = resources.documentCache;
+        this.parserPool = resources.parserPool;
+        this.resourceResolver = resources.resourceResolver;
+        this.eventBus = eventBus;
+        this.outputDirectory = resources.outputDirectory;
+        this.validationHandler = validationHandler;
+        this.transformHandler = transformHandler;
+        this.queryHandler = queryHandler;
+        this.xpathHandler = xpathHandler;
+    }
+
+    public void handle(final Message message) {
+        final XmlRequest request = newRequest(message);
+        if (request == null) {
+            return;
+        }
+        final JsonArray steps = request.body().getArray(STEPS);
+        final List<String> urls = new ArrayList<>();
+        if (!isCached(documentCache, request) || (steps != null && steps.size() > 0 && isDtdValidation(steps.get(0)))) {
+            urls.add(request.body().getString(URL_XML));
+        }
+        if (steps != null) {
+            for (Object step : steps) {
+                urls.add(programUrl(step));
+            }
+        }
+        fetch(message, request, new Handler<XmlRequest>() {
+            @Override
+            public void handle(XmlRequest request) {
+                process(message, request);
+            }
+        }, urls.toArray(new String[urls.size()]));
+    }
+
+    private void process(Message message, XmlRequest request) {
+        final JsonObject messageBody = request.body();
+        final JsonArray steps = messageBody.getArray(STEPS);
+
+        if (!request.hasDocument() && Strings.isNullOrEmpty(messageBody.getString(XML))
+                && Strings.isNullOrEmpty(messageBody.getString(URL_XML))) {
+            sendError(message, "xml ou url_xml must be specified");
+            return;
+        }
+        if (steps == null || steps.size() == 0) {
+            sendError(message, "steps must be a non empty array");
+            return;
+        }
+
+        final RequestMetrics.Sample sample = request.getSample();
+        final JsonArray report = new JsonArray();
+        int index = -1;
+        long start = System.nanoTime();
+        try {
+            final ResultType resultType = resultType(messageBody);
+            final String lastOperation = ((JsonObject) steps.get(steps.size() - 1)).getString(OPERATION);
+            if (resultType != null && !RequestExecutors.QUERY.equals(lastOperation)
+                    && !RequestExecutors.XPATH.equals(lastOperation)) {
+                throw new IllegalArgumentException("result_type requires a last query or xpath step");
+            }
+            XdmNode document = null;
+            if (!isDtdValidation(steps.get(0))) {
+                document = getXmlDocument(message, request, documentCache);
+                if (document == null) {
+                    return;
+                }
+                sample.lap(RequestMetrics.PARSE);
+            }
+            final XmlOutput output = resultType == null ? XmlOutput.of(request, eventBus, outputDirectory) : null;
+            Object result = null;
+            for (index = 0; index < steps.size(); index++) {
+                start = System.nanoTime();
+                final JsonObject step = (JsonObject) steps.get(index);
+                final String operation = step.getString(OPERATION);
+                final boolean last = index == steps.size() - 1;
+                final XdmDestination tree = new XdmDestination();
+                if (operation == null) {
+                    throw new IllegalArgumentException("operation must be specified");
+                }
+                switch (operation) {
+                    case RequestExecutors.VALIDATION: {
+                        final XmlErrorHandler errorHandler = XmlValidationHandler.newErrorHandler(step);
+                        if (isDtdValidation(step)) {
+                            if (index > 0) {
+                                throw new IllegalArgumentException("dtd validation must be the first step");
+                            }
+                            document = parse(message, request, errorHandler);
+                            sample.lap(RequestMetrics.PARSE);
+                        } else {
+                            final EvaluatorPool<Schema, Validator> pool =
+                                    validationHandler.getSchemaPool(request, step);
+                            sample.lap(RequestMetrics.COMPILE);
+                            validate(pool, document, errorHandler);
+                            sample.lap(RequestMetrics.EVALUATE);
+                        }
+                        if (!Strings.isNullOrEmpty(errorHandler.getErrors())) {
+                            report.addObject(stepReport(operation, "error", start));
+                            sendStatus("error", message, new JsonObject()
+                                    .putString("message", errorHandler.getErrors())
+                                    .putArray("errors", errorHandler.getErrorArray())
+                                    .putBoolean("aborted", errorHandler.isAborted())
+                                    .putNumber("step", index)
+                                    .putArray(STEPS, report));
+                            return;
+                        }
+                        if (document == null) {
+                            // the source of the document is invalid, the error is already replied
+                            return;
+                        }
+                        if (last) {
+                            // the validated document is the output of the pipeline
+                            output.newSerializer(processor, null).serializeNode(document);
+                        }
+                        break;
+                    }
+                    case RequestExecutors.TRANSFORM: {
+                        final JsonObject outputProperties = step.getObject(XmlTransformHandler.OUTPUT_PROPERTIES);
+                        final EvaluatorPool<XsltExecutable, XsltTransformer> pool = transformHandler.getPool(request,
+                                step.getString(XmlTransformHandler.XSL), step.getString(XmlTransformHandler.URL_XSL),
+                                step.getString(XmlTransformHandler.TEMPLATE),
+                                step.getString(XmlTransformHandler.BASE_URI), outputProperties);
+                        sample.lap(RequestMetrics.COMPILE);
+                        XmlTransformHandler.transform(pool, document,
+                                getParams(step.getArray(XmlTransformHandler.PARAMS)),
+                                last ? output.newSerializer(processor, outputProperties) : tree,
+                                request.getTraceListener());
+                        sample.lap(RequestMetrics.EVALUATE);
+                        document = last ? null : tree.getXdmNode();
+                        break;
+                    }
+                    case RequestExecutors.QUERY: {
+                        final EvaluatorPool<XQueryExecutable, XQueryEvaluator> pool = queryHandler.getPool(
+                                step.getString(XmlQueryHandler.QUERY), step.getString(XmlQueryHandler.TEMPLATE),
+                                step.getString(XmlQueryHandler.BASE_URI), step.getObject(XmlQueryHandler.NAMESPACES),
+                                step.getObject(XmlQueryHandler.OUTPUT_PROPERTIES));
+                        sample.lap(RequestMetrics.COMPILE);
+                        final XQueryEvaluator xQueryEvaluator = pool.borrow();
+                        try {
+                            xQueryEvaluator.setTraceListener(request.getTraceListener());
+                            xQueryEvaluator.setContextItem(document);
+                            XmlQueryHandler.setExternalVariables(xQueryEvaluator,
+                                    getParams(step.getArray(XmlQueryHandler.PARAMS)));
+                            if (last && resultType != null) {
+                                result = resultType.map(processor, xQueryEvaluator.evaluate());
+                            } else {
+                                // the result sequence of an intermediate step is wrapped in a document
+                                xQueryEvaluator.run(last ? output.newSerializer(processor,
+                                        step.getObject(XmlQueryHandler.OUTPUT_PROPERTIES)) : tree);
+                            }
+                        } finally {
+                            pool.release(xQueryEvaluator);
+                        }
+                        sample.lap(RequestMetrics.EVALUATE);
+                        document = last ? null : tree.getXdmNode();
+                        break;
+                    }
+                    case RequestExecutors.XPATH: {
+                        final JsonArray params = step.getArray(XmlXPathHandler.PARAMS);
+                        final EvaluatorPool<XPathExecutable, XPathSelector> pool = xpathHandler.getPool(
+                                step.getString(XmlXPathHandler.XPATH), step.getString(XmlXPathHandler.TEMPLATE),
+                                step.getString(XmlXPathHandler.BASE_URI), step.getObject(XmlXPathHandler.NAMESPACES),
+                                params);
+                        sample.lap(RequestMetrics.COMPILE);
+                        final XPathSelector xPathSelector = pool.borrow();
+                        try {
+                            xPathSelector.setContextItem(document);
+                            XmlXPathHandler.setVariables(xPathSelector, getParams(params));
+                            if (last && resultType != null) {
+                                result = resultType.evaluate(processor, xPathSelector);
+                            } else if (last) {
+                                output.newSerializer(processor, null).serializeXdmValue(xPathSelector.evaluate());
+                            } else {
+                                final XdmValue value = xPathSelector.evaluate();
+                                if (value.size() != 1 || !(value.itemAt(0) instanceof XdmNode)) {
+                                    throw new IllegalArgumentException(
+                                            "xpath of an intermediate step must select one node");
+                                }
+                                document = (XdmNode) value.itemAt(0);
+                            }
+                        } finally {
+                            pool.release(xPathSelector);
+                        }
+                        sample.lap(RequestMetrics.EVALUATE);
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("unknown operation " + operation);
+                }
+                report.addObject(stepReport(operation, "ok", start));
+            }
+            if (output == null) {
+                sendOK(message, new JsonObject().putValue(RESULT, result).putArray(STEPS, report));
+            } else if (output.isBuffer()) {
+                sendOutput(message, output);
+            } else {
+                sendOK(message, output.finish().putArray(STEPS, report));
+            }
+            sample.lap(RequestMetrics.SERIALIZE);
+        } catch (SaxonApiException | ExecutionException | IllegalArgumentException | ClassCastException
+                | ParserConfigurationException | SAXException e) {
+            sendStepError(message, steps, index, report, start, e.getMessage());
+        } catch (InterruptedException e) {
+            // interrupted by the deadline of the request while waiting for a parser
+            Thread.currentThread().interrupt();
+            sendStepError(message, steps, index, report, start, "pipeline interrupted");
+        }
+    }
+
+    /**
+     * Parses the document of a request with a validating parser of the pool, so that it is checked
+     * against its DTD while its tree is built.
+     *
+     * @return the tree of the document, null when it has validation errors or its source is invalid
+     */
+    private XdmNode parse(Message message, XmlRequest request, XmlErrorHandler errorHandler)
+            throws SaxonApiException, InterruptedException, ParserConfigurationException, SAXException {
+        final Source source = getXmlSource(message, request);
+        if (source == null) {
+            return null;
+        }
+        final SAXParser saxParser = parserPool.borrow();
+        try {
+            final XMLReader xmlReader = saxParser.getXMLReader();
+            xmlReader.setErrorHandler(errorHandler);
+            if (resourceResolver != null) {
+                xmlReader.setEntityResolver(resourceResolver);
+            }
+            final XdmNode document = getTreeBuilder(request.body()).build(
+                    new SAXSource(xmlReader, SAXSource.sourceToInputSource(source)));
+            return Strings.isNullOrEmpty(errorHandler.getErrors()) ? document : null;
+        } catch (SaxonApiException e) {
+            // fatal errors and aborts are already in the report
+            if (!errorHandler.isReported(e)) {
+                throw e;
+            }
+            return null;
+        } finally {
+            parserPool.release(saxParser);
+        }
+    }
+
+    /**
+     * Validates a tree against a schema, its events are sent to a validator handler without serializing it.
+     * Nodes of a tree have no location, errors are reported without line and column.
+     */
+    private void validate(EvaluatorPool<Schema, Validator> pool, XdmNode document, XmlErrorHandler errorHandler)
+            throws SaxonApiException {
+        // validator handlers aren't pooled, they are cheap compared to the validation
+        final ValidatorHandler validatorHandler = pool.getExecutable().newValidatorHandler();
+        validatorHandler.setErrorHandler(errorHandler);
+        validatorHandler.setResourceResolver(resourceResolver);
+        try {
+            processor.writeXdmValue(document, new SAXDestination(validatorHandler));
+        } catch (SaxonApiException e) {
+            // aborts are already in the report
+            if (!errorHandler.isReported(e)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Replies the error of a step, with the report of the steps until it, or an error of the request
+     * when no step has started.
+     */
+    private void sendStepError(Message message, JsonArray steps, int index, JsonArray report, long start,
+                               String error) {
+        final JsonObject json = new JsonObject().putString("message", error);
+        if (index >= 0) {
+            final Object step = steps.get(index);
+            report.addObject(stepReport(step instanceof JsonObject ? ((JsonObject) step).getString(OPERATION) : null,
+                    "error", start));
+            json.putNumber("step", index).putArray(STEPS, report);
+        }
+        sendStatus("error", message, json);
+    }
+
+    /**
+     * @return the url of the stylesheet or schema of a step to fetch, null when it is already compiled
+     */
+    private String programUrl(Object step) {
+        if (!(step instanceof JsonObject)) {
+            return null;
+        }
+        final JsonObject object = (JsonObject) step;
+        if (!Strings.isNullOrEmpty(object.getString(XmlTransformHandler.TEMPLATE))) {
+            return null;
+        }
+        switch (object.getString(OPERATION, "")) {
+            case RequestExecutors.VALIDATION:
+                final String url_xsd = object.getString(XmlValidationHandler.URL_XSD);
+                return compilationCache.contains(XmlValidationHandler.xsdKey(object.getString(XmlValidationHandler.XSD),
+                        url_xsd, object.getString(XmlValidationHandler.BASE_URI))) ? null : url_xsd;
+            case RequestExecutors.TRANSFORM:
+                final String url_xsl = object.getString(XmlTransformHandler.URL_XSL);
+                return compilationCache.contains(XmlTransformHandler.xslKey(object.getString(XmlTransformHandler.XSL),
+                        url_xsl, object.getString(XmlTransformHandler.BASE_URI),
+                        object.getObject(XmlTransformHandler.OUTPUT_PROPERTIES))) ? null : url_xsl;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return true for a validation step without schema, which checks the document against its DTD
+     */
+    private static boolean isDtdValidation(Object step) {
+        if (!(step instanceof JsonObject)) {
+            return false;
+        }
+        final JsonObject object = (JsonObject) step;
+        return RequestExecutors.VALIDATION.equals(object.getString(OPERATION))
+                && Strings.isNullOrEmpty(object.getString(XmlValidationHandler.XSD))
+                && Strings.isNullOrEmpty(object.getString(XmlValidationHandler.URL_XSD))
+                && Strings.isNullOrEmpty(object.getString(XmlValidationHandler.TEMPLATE));
+    }
+
+    private static JsonObject stepReport(String operation, String status, long start) {
+        return new JsonObject()
+                .putString(OPERATION, operation)
+                .putString("status", status)
+                .putNumber("time_ms", (System.nanoTime() - start) / 1000 / 1000.0);
+    }
+}
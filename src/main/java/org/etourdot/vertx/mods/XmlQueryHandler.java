@@ -16,12 +16,8 @@
 
 package org.etourdot.vertx.mods;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
 
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
@@ -30,23 +26,21 @@ import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryEvaluator;
 import net.sf.saxon.s9api.XQueryExecutable;
-import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
 
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
-import org.xml.sax.InputSource;
 
-import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-
-import javax.xml.transform.Source;
-import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.stream.StreamSource;
 
 /**
  * XML Module<p> Please see the busmods manual for a full description<p>
@@ -54,75 +48,166 @@ import javax.xml.transform.stream.StreamSource;
 public class XmlQueryHandler extends XmlDefaultHandler {
 
     public static final String QUERY = "query";
-    public static final String XML = "xml";
-    public static final String URL_XML = "url_xml";
+    public static final String XML = XmlDefaultHandler.XML;
+    public static final String URL_XML = XmlDefaultHandler.URL_XML;
     public static final String PARAMS = "params";
+    public static final String BASE_URI = "base_uri";
+    public static final String NAMESPACES = "namespaces";
+    public static final String TEMPLATE = "template";
+    public static final String OUTPUT_MODE = XmlOutput.OUTPUT_MODE;
+    public static final String REPLY_ADDRESS = XmlOutput.REPLY_ADDRESS;
+    public static final String CHUNK_SIZE = XmlOutput.CHUNK_SIZE;
+    public static final String OUTPUT_FILE = XmlOutput.OUTPUT_FILE;
+    public static final String OUTPUT_PROPERTIES = "output_properties";
+    public static final String RESULT_TYPE = XmlDefaultHandler.RESULT_TYPE;
+    public static final String RESULT = XmlDefaultHandler.RESULT;
+    public static final String TIMEOUT = RequestTimeouts.TIMEOUT;
 
     private final Processor processor;
-    private final Cache<HashCode, XQueryEvaluator> cacheXQueryEvaluator;
+    private final CompilationCache compilationCache;
+    private final DocumentCache documentCache;
+    private final TemplateRegistry templateRegistry;
+    private final EventBus eventBus;
+    private final File outputDirectory;
 
-    public XmlQueryHandler(Processor processor) {
-        this.processor = processor;
-        cacheXQueryEvaluator = CacheBuilder.newBuilder().expireAfterAccess(20, TimeUnit.MINUTES).build();
+    public XmlQueryHandler(SharedResources resources, EventBus eventBus, ResourceFetcher fetcher,
+                           RequestExecutors.Pool executor) {
+        super(RequestExecutors.QUERY, resources, fetcher, executor);
+        this.processor = resources.processor;
+        this.compilationCache = resources.compilationCache;
+        this.documentCache = resources.documentCache;
+        this.templateRegistry = resources.templateRegistry;
+        this.eventBus = eventBus;
+        this.outputDirectory = resources.outputDirectory;
     }
 
-    public void handle(Message message) {
-        final JsonObject messageBody = (JsonObject) message.body();
+    public void handle(final Message message) {
+        final XmlRequest request = newRequest(message);
+        if (request == null) {
+            return;
+        }
+        fetch(message, request, new Handler<XmlRequest>() {
+            @Override
+            public void handle(XmlRequest request) {
+                process(message, request);
+            }
+        }, isCached(documentCache, request) ? null : request.body().getString(URL_XML));
+    }
+
+    private void process(Message message, XmlRequest request) {
+        final JsonObject messageBody = request.body();
         final String query = messageBody.getString(QUERY);
         final String xml = messageBody.getString(XML);
         final String url_xml = messageBody.getString(URL_XML);
         final JsonArray params = messageBody.getArray(PARAMS);
+        final String base_uri = messageBody.getString(BASE_URI);
+        final JsonObject namespaces = messageBody.getObject(NAMESPACES);
+        final String template = messageBody.getString(TEMPLATE);
+        final JsonObject outputProperties = messageBody.getObject(OUTPUT_PROPERTIES);
 
-        if (Strings.isNullOrEmpty(xml) && Strings.isNullOrEmpty(url_xml)) {
+        if (!request.hasDocument() && Strings.isNullOrEmpty(xml) && Strings.isNullOrEmpty(url_xml)) {
             sendError(message, "xml ou url_xml must be specified");
             return;
         }
-        if (Strings.isNullOrEmpty(query)) {
-            sendError(message, "query must be specified");
+        if (Strings.isNullOrEmpty(query) && Strings.isNullOrEmpty(template)) {
+            sendError(message, "query or template must be specified");
             return;
         }
 
         try {
-            final Source xml_source;
-            if (!Strings.isNullOrEmpty(xml)) {
-                if (!Strings.isNullOrEmpty(url_xml)) {
-                    sendError(message, "xml either url_xml must be specified");
-                    return;
+            final RequestMetrics.Sample sample = request.getSample();
+            final ResultType resultType = resultType(messageBody);
+            final XdmNode source = getXmlDocument(message, request, documentCache);
+            if (source == null) {
+                return;
+            }
+            sample.lap(RequestMetrics.PARSE);
+            final EvaluatorPool<XQueryExecutable, XQueryEvaluator> pool = getPool(query, template, base_uri,
+                    namespaces, outputProperties);
+            sample.lap(RequestMetrics.COMPILE);
+            final XmlOutput output = resultType == null ? XmlOutput.of(request, eventBus, outputDirectory) : null;
+            final Serializer out = output == null ? null : output.newSerializer(processor, outputProperties);
+            final XdmValue result;
+            final XQueryEvaluator xQueryEvaluator = pool.borrow();
+            try {
+                xQueryEvaluator.setTraceListener(request.getTraceListener());
+                xQueryEvaluator.setContextItem(source);
+                setExternalVariables(xQueryEvaluator, getParams(params));
+                if (out == null) {
+                    // the result is mapped item by item to JSON instead of being serialized
+                    result = xQueryEvaluator.evaluate();
+                } else {
+                    xQueryEvaluator.run(out);
+                    result = null;
                 }
-                xml_source = new StreamSource(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            } finally {
+                pool.release(xQueryEvaluator);
+            }
+            sample.lap(RequestMetrics.EVALUATE);
+            if (output == null) {
+                sendOK(message, new JsonObject().putValue(RESULT, resultType.map(processor, result)));
             } else {
-                xml_source = new SAXSource(new InputSource(url_xml));
+                sendOutput(message, output);
+            }
+            sample.lap(RequestMetrics.SERIALIZE);
+        } catch (SaxonApiException | ExecutionException | IllegalArgumentException e) {
+            sendError(message, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the pool of a template or of a compiled xquery.
+     *
+     * @throws IllegalArgumentException if the template is unknown or given with a query
+     */
+    EvaluatorPool<XQueryExecutable, XQueryEvaluator> getPool(final String query, String template,
+                                                             final String base_uri,
+                                                             final JsonObject namespaces,
+                                                             JsonObject outputProperties) throws ExecutionException {
+        if (!Strings.isNullOrEmpty(template)) {
+            if (!Strings.isNullOrEmpty(query)) {
+                throw new IllegalArgumentException("template either query must be specified");
             }
-            final HashCode key = Hashing.crc32().hashString(query, Charsets.UTF_8);
-            final XQueryEvaluator xQueryEvaluator = cacheXQueryEvaluator.get(key,
-                    new Callable<XQueryEvaluator>() {
-                        @Override
-                        public XQueryEvaluator call() throws Exception {
-                            final XQueryCompiler xQueryCompiler = processor.newXQueryCompiler();
-                            final XQueryExecutable xQueryExecutable = xQueryCompiler.compile(query);
-                            return xQueryExecutable.load();
-                        }
-                    });
-            final StringWriter writer = new StringWriter();
-            final Serializer out = processor.newSerializer(writer);
-            xQueryEvaluator.setSource(xml_source);
-            xQueryEvaluator.setDestination(out);
-            if (params != null) {
-                for (Object param : params) {
-                    final JsonObject object = (JsonObject) param;
-                    for (String fieldName : object.getFieldNames()) {
-                        xQueryEvaluator.setExternalVariable(new QName(fieldName),
-                                new XdmAtomicValue(object.getString(fieldName)));
+            final EvaluatorPool<XQueryExecutable, XQueryEvaluator> pool = templateRegistry.getXQuery(template);
+            if (pool == null) {
+                throw new IllegalArgumentException("unknown xquery template " + template);
+            }
+            return pool;
+        }
+        if (Strings.isNullOrEmpty(query)) {
+            throw new IllegalArgumentException("query or template must be specified");
+        }
+        final HashCode key = CompilationKey.of(CompilationKey.XQUERY).source(query).baseUri(base_uri)
+                .namespaces(namespaces).outputProperties(outputProperties).hash();
+        return compilationCache.get(key, query,
+                new Callable<EvaluatorPool<XQueryExecutable, XQueryEvaluator>>() {
+                    @Override
+                    public EvaluatorPool<XQueryExecutable, XQueryEvaluator> call() throws Exception {
+                        final XQueryExecutable xQueryExecutable = compile(processor, query, base_uri, namespaces);
+                        return EvaluatorPool.of(xQueryExecutable, compilationCache.getPoolSize());
                     }
-                }
+                });
+    }
+
+    static void setExternalVariables(XQueryEvaluator xQueryEvaluator, Map<QName, XdmValue> params) {
+        for (Map.Entry<QName, XdmValue> param : params.entrySet()) {
+            xQueryEvaluator.setExternalVariable(param.getKey(), param.getValue());
+        }
+    }
+
+    static XQueryExecutable compile(Processor processor, String query, String base_uri, JsonObject namespaces)
+            throws SaxonApiException, URISyntaxException {
+        final XQueryCompiler xQueryCompiler = processor.newXQueryCompiler();
+        // xquery compilers don't inherit the tracing setting of the configuration, unlike xslt ones
+        xQueryCompiler.setCompileWithTracing(processor.getUnderlyingConfiguration().isCompileWithTracing());
+        if (base_uri != null) {
+            xQueryCompiler.setBaseURI(new URI(base_uri));
+        }
+        if (namespaces != null) {
+            for (String prefix : namespaces.getFieldNames()) {
+                xQueryCompiler.declareNamespace(prefix, namespaces.getString(prefix));
             }
-            xQueryEvaluator.run();
-            JsonObject outputObject = new JsonObject();
-            outputObject.putString("output", writer.toString());
-            sendOK(message, outputObject);
-        } catch (SaxonApiException | UnsupportedEncodingException | ExecutionException e) {
-            sendError(message, e.getMessage());
         }
+        return xQueryCompiler.compile(query);
     }
 }
-
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import com.google.common.base.Charsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+import net.sf.saxon.lib.TraceListener;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Request received by a handler: a JSON message or a Buffer message.<p>
+ * A Buffer message is either a raw xml document or a binary envelope:
+ * <pre>
+ * +---------------+-----------------------+--------------------+-----------------+
+ * | magic "\0XML" | header length (int32) | header (JSON UTF-8) | raw xml bytes   |
+ * +---------------+-----------------------+--------------------+-----------------+
+ * </pre>
+ * The header carries the same fields as the JSON message, minus <code>xml</code>/<code>url_xml</code>.
+ * The document is read through an InputStream view of the underlying Netty buffer, without copy.
+ * Replies in <code>buffer</code> output mode use the same envelope (see {@link XmlOutput}).
+ */
+public final class XmlRequest {
+
+    static final byte[] MAGIC = {0, 'X', 'M', 'L'};
+    private static final int HEADER_OFFSET = MAGIC.length + 4;
+
+    private final JsonObject body;
+    private final ByteBuf document;
+    private final Map<String, Buffer> fetched = new HashMap<>();
+    private RequestTimeouts.Deadline deadline;
+    private RequestMetrics.Sample sample;
+    private XmlOutput output;
+
+    private XmlRequest(JsonObject body, ByteBuf document) {
+        this.body = body;
+        this.document = document;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the message is an invalid envelope
+     */
+    static XmlRequest of(Message<?> message) {
+        if (message.body() instanceof Buffer) {
+            final Buffer buffer = (Buffer) message.body();
+            final ByteBuf byteBuf = buffer.getByteBuf();
+            if (isEnvelope(buffer)) {
+                final int headerLength = buffer.getInt(MAGIC.length);
+                if (headerLength < 0 || headerLength > buffer.length() - HEADER_OFFSET) {
+                    throw new IllegalArgumentException("invalid envelope header length " + headerLength);
+                }
+                final JsonObject header;
+                try {
+                    header = new JsonObject(buffer.getString(HEADER_OFFSET, HEADER_OFFSET + headerLength, "UTF-8"));
+                } catch (DecodeException e) {
+                    throw new IllegalArgumentException("invalid envelope header: " + e.getMessage(), e);
+                }
+                final int documentOffset = HEADER_OFFSET + headerLength;
+                return new XmlRequest(header, byteBuf.slice(documentOffset,
+                        buffer.length() - documentOffset));
+            }
+            return new XmlRequest(new JsonObject(), byteBuf.slice(0, buffer.length()));
+        }
+        return new XmlRequest((JsonObject) message.body(), null);
+    }
+
+    /**
+     * Builds a binary envelope message from a header and a raw xml document.
+     */
+    public static Buffer envelope(JsonObject header, Buffer document) {
+        final byte[] headerBytes = header.encode().getBytes(Charsets.UTF_8);
+        final Buffer buffer = new Buffer(HEADER_OFFSET + headerBytes.length + document.length());
+        buffer.appendBytes(MAGIC).appendInt(headerBytes.length).appendBytes(headerBytes).appendBuffer(document);
+        return buffer;
+    }
+
+    /**
+     * Starts a binary envelope with a header, the document is then appended to the returned buffer.
+     */
+    static Buffer envelopeHeader(JsonObject header) {
+        final byte[] headerBytes = header.encode().getBytes(Charsets.UTF_8);
+        return new Buffer().appendBytes(MAGIC).appendInt(headerBytes.length).appendBytes(headerBytes);
+    }
+
+    static boolean isEnvelope(Buffer buffer) {
+        if (buffer.length() < HEADER_OFFSET) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.getByte(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    JsonObject body() {
+        return body;
+    }
+
+    boolean hasDocument() {
+        return document != null;
+    }
+
+    /**
+     * @return a new stream over the document of a Buffer message, null for a JSON message
+     */
+    InputStream openDocument() {
+        return document == null ? null : new ByteBufInputStream(document.duplicate());
+    }
+
+    /**
+     * Keeps the content of an url of the request, fetched before processing it.
+     */
+    void putFetched(String url, Buffer content) {
+        fetched.put(url, content);
+    }
+
+    /**
+     * @return a new stream over the fetched content of an url, null when it wasn't fetched
+     */
+    InputStream openFetched(String url) {
+        final Buffer content = url == null ? null : fetched.get(url);
+        return content == null ? null : new ByteBufInputStream(content.getByteBuf().duplicate());
+    }
+
+    /**
+     * @return the deadline of the request, set when its processing starts
+     */
+    RequestTimeouts.Deadline getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(RequestTimeouts.Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the trace listener aborting the evaluations of the request, null when they can't be aborted
+     */
+    TraceListener getTraceListener() {
+        return deadline == null ? null : deadline.getTraceListener();
+    }
+
+    /**
+     * @return the timings of the request, set when its processing starts
+     */
+    RequestMetrics.Sample getSample() {
+        return sample;
+    }
+
+    void setSample(RequestMetrics.Sample sample) {
+        this.sample = sample;
+    }
+
+    /**
+     * @return the output of the result of the request, null until it is created
+     */
+    XmlOutput getOutput() {
+        return output;
+    }
+
+    void setOutput(XmlOutput output) {
+        this.output = output;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * XML Module<p> Replies with the statistics of the module caches, executors and requests, and the
+ * registered templates<p>
+ */
+public class XmlStatsHandler extends XmlDefaultHandler {
+
+    private final CompilationCache compilationCache;
+    private final DocumentCache documentCache;
+    private final TemplateRegistry templateRegistry;
+    private final ParserPool parserPool;
+    private final ResourceResolver resourceResolver;
+    private final RequestExecutors executors;
+    private final RequestTimeouts timeouts;
+    private final RequestMetrics metrics;
+    private final TreeBuilders treeBuilders;
+
+    XmlStatsHandler(SharedResources resources) {
+        this.compilationCache = resources.compilationCache;
+        this.documentCache = resources.documentCache;
+        this.templateRegistry = resources.templateRegistry;
+        this.parserPool = resources.parserPool;
+        this.resourceResolver = resources.resourceResolver;
+        this.executors = resources.executors;
+        this.timeouts = resources.timeouts;
+        this.metrics = resources.metrics;
+        this.treeBuilders = resources.treeBuilders;
+    }
+
+    public void handle(Message message) {
+        sendOK(message, stats());
+    }
+
+    /**
+     * @return the statistics, also published periodically on the metrics address
+     */
+    JsonObject stats() {
+        final JsonObject outputObject = new JsonObject();
+        outputObject.putObject("compilation_cache", compilationCache.stats());
+        if (documentCache != null) {
+            outputObject.putObject("document_cache", documentCache.stats());
+        }
+        outputObject.putObject("parser_pool", parserPool.stats());
+        outputObject.putObject("tree", treeBuilders.stats());
+        if (resourceResolver != null) {
+            outputObject.putObject("resource_cache", resourceResolver.stats());
+        }
+        outputObject.putObject("executors", executors.stats());
+        outputObject.putObject("timeouts", timeouts.stats());
+        outputObject.putObject("metrics", metrics.toJson());
+        outputObject.putObject("templates", templateRegistry.names());
+        return outputObject;
+    }
+}
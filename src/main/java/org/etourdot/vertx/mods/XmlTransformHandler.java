@@ -16,35 +16,41 @@
 
 package org.etourdot.vertx.mods;
 
-import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
 
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.Serializer;
-import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.xml.sax.InputSource;
 
-import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.sax.SAXSource;
@@ -59,87 +65,394 @@ public class XmlTransformHandler extends XmlDefaultHandler {
 
     public static final String XSL = "xsl";
     public static final String URL_XSL = "url_xsl";
-    public static final String XML = "xml";
-    public static final String URL_XML = "url_xml";
+    public static final String XML = XmlDefaultHandler.XML;
+    public static final String URL_XML = XmlDefaultHandler.URL_XML;
     public static final String PARAMS = "params";
+    public static final String BASE_URI = "base_uri";
+    public static final String OUTPUT_PROPERTIES = "output_properties";
+    public static final String TEMPLATE = "template";
+    public static final String DOCUMENTS = "documents";
+    public static final String STYLESHEETS = "stylesheets";
+    public static final String RESULTS = "results";
+    public static final String OUTPUT_MODE = XmlOutput.OUTPUT_MODE;
+    public static final String REPLY_ADDRESS = XmlOutput.REPLY_ADDRESS;
+    public static final String CHUNK_SIZE = XmlOutput.CHUNK_SIZE;
+    public static final String OUTPUT_FILE = XmlOutput.OUTPUT_FILE;
+    public static final String TIMEOUT = RequestTimeouts.TIMEOUT;
 
     private final Processor processor;
-    private final Cache<HashCode, XsltTransformer> cacheTransformers;
+    private final CompilationCache compilationCache;
+    private final DocumentCache documentCache;
+    private final TemplateRegistry templateRegistry;
+    private final EventBus eventBus;
+    private final File outputDirectory;
+    private final ExecutorService batchExecutor;
+    private final int batchThreads;
 
-    public XmlTransformHandler(Processor processor) {
-        this.processor = processor;
-        cacheTransformers = CacheBuilder.newBuilder().expireAfterAccess(20, TimeUnit.MINUTES).build();
+    public XmlTransformHandler(SharedResources resources, EventBus eventBus, ResourceFetcher fetcher,
+                               RequestExecutors.Pool executor) {
+        super(RequestExecutors.TRANSFORM, resources, fetcher, executor);
+        this.processor = resources.processor;
+        this.compilationCache = resources.compilationCache;
+        this.documentCache = resources.documentCache;
+        this.templateRegistry = resources.templateRegistry;
+        this.eventBus = eventBus;
+        this.outputDirectory = resources.outputDirectory;
+        this.batchExecutor = resources.batchExecutor;
+        this.batchThreads = resources.batchThreads;
     }
 
-    public void handle(Message message) {
-        final JsonObject messageBody = (JsonObject) message.body();
+    public void handle(final Message message) {
+        final XmlRequest request = newRequest(message);
+        if (request == null) {
+            return;
+        }
+        final JsonObject messageBody = request.body();
+        final List<String> urls = new ArrayList<>();
+        urls.add(isCached(documentCache, request) ? null : messageBody.getString(URL_XML));
+        urls.add(uncompiledUrl(messageBody));
+        final JsonArray stylesheets = messageBody.getArray(STYLESHEETS);
+        if (stylesheets != null) {
+            for (Object stylesheet : stylesheets) {
+                urls.add(stylesheet instanceof JsonObject ? uncompiledUrl((JsonObject) stylesheet) : null);
+            }
+        }
+        fetch(message, request, new Handler<XmlRequest>() {
+            @Override
+            public void handle(XmlRequest request) {
+                process(message, request);
+            }
+        }, urls.toArray(new String[urls.size()]));
+    }
+
+    /**
+     * @return the url of a stylesheet to fetch, null when it is already compiled
+     */
+    private String uncompiledUrl(JsonObject stylesheet) {
+        final String url_xsl = stylesheet.getString(URL_XSL);
+        final boolean compiled = !Strings.isNullOrEmpty(stylesheet.getString(TEMPLATE))
+                || compilationCache.contains(xslKey(stylesheet.getString(XSL), url_xsl,
+                stylesheet.getString(BASE_URI), stylesheet.getObject(OUTPUT_PROPERTIES)));
+        return compiled ? null : url_xsl;
+    }
+
+    private void process(Message message, XmlRequest request) {
+        final JsonObject messageBody = request.body();
         final String xsl = messageBody.getString(XSL);
         final String url_xsl = messageBody.getString(URL_XSL);
         final String xml = messageBody.getString(XML);
         final String url_xml = messageBody.getString(URL_XML);
         final JsonArray params = messageBody.getArray(PARAMS);
+        final String base_uri = messageBody.getString(BASE_URI);
+        final JsonObject outputProperties = messageBody.getObject(OUTPUT_PROPERTIES);
+        final String template = messageBody.getString(TEMPLATE);
 
-        if (Strings.isNullOrEmpty(xml) && Strings.isNullOrEmpty(url_xml)) {
+        if (messageBody.containsField(STYLESHEETS)) {
+            handleChain(message, request);
+            return;
+        }
+        if (messageBody.containsField(DOCUMENTS)) {
+            handleBatch(message, request);
+            return;
+        }
+        if (!request.hasDocument() && Strings.isNullOrEmpty(xml) && Strings.isNullOrEmpty(url_xml)) {
             sendError(message, "xml ou url_xml must be specified");
             return;
         }
-        if (Strings.isNullOrEmpty(xsl) && Strings.isNullOrEmpty(url_xsl)) {
-            sendError(message, "xsl or url_xsl must be specified");
+        if (Strings.isNullOrEmpty(xsl) && Strings.isNullOrEmpty(url_xsl) && Strings.isNullOrEmpty(template)) {
+            sendError(message, "xsl, url_xsl or template must be specified");
             return;
         }
 
         try {
-            final Source xml_source;
-            if (!Strings.isNullOrEmpty(xml)) {
-                if (!Strings.isNullOrEmpty(url_xml)) {
-                    sendError(message, "xml either url_xml must be specified");
-                    return;
-                }
-                xml_source = new StreamSource(new ByteArrayInputStream(xml.getBytes("UTF-8")));
-            } else {
-                xml_source = new SAXSource(new InputSource(url_xml));
+            final RequestMetrics.Sample sample = request.getSample();
+            final XdmNode source = getXmlDocument(message, request, documentCache);
+            if (source == null) {
+                return;
             }
-            final Source xsl_source;
-            if (!Strings.isNullOrEmpty(xsl)) {
-                if (!Strings.isNullOrEmpty(url_xsl)) {
-                    sendError(message, "xsl either url_xsl must be specified");
-                    return;
-                }
-                xsl_source = new StreamSource(new ByteArrayInputStream(xsl.getBytes("UTF-8")));
-            } else {
-                xsl_source = new SAXSource(new InputSource(url_xsl));
+            sample.lap(RequestMetrics.PARSE);
+            final EvaluatorPool<XsltExecutable, XsltTransformer> pool = getPool(request, xsl, url_xsl, template,
+                    base_uri, outputProperties);
+            sample.lap(RequestMetrics.COMPILE);
+            final XmlOutput output = XmlOutput.of(request, eventBus, outputDirectory);
+            transform(pool, source, getParams(params), output.newSerializer(processor, outputProperties),
+                    request.getTraceListener());
+            sample.lap(RequestMetrics.EVALUATE);
+            sendOutput(message, output);
+            sample.lap(RequestMetrics.SERIALIZE);
+        } catch (SaxonApiException | ExecutionException | IllegalArgumentException e) {
+            sendError(message, e.getMessage());
+        }
+    }
+
+    /**
+     * Transforms the document with every stylesheet of <code>stylesheets</code> in turn, each transformer
+     * being the destination of the previous one: intermediate results are trees, never serialized.
+     */
+    private void handleChain(Message message, XmlRequest request) {
+        final JsonObject messageBody = request.body();
+        final JsonArray stylesheets = messageBody.getArray(STYLESHEETS);
+
+        if (stylesheets == null || stylesheets.size() == 0) {
+            sendError(message, "stylesheets must be a non empty array");
+            return;
+        }
+        if (messageBody.containsField(XSL) || messageBody.containsField(URL_XSL)
+                || messageBody.containsField(TEMPLATE) || messageBody.containsField(DOCUMENTS)) {
+            sendError(message, "stylesheets either xsl, url_xsl, template or documents must be specified");
+            return;
+        }
+        if (messageBody.containsField(PARAMS)) {
+            sendError(message, "params must be specified per stylesheet");
+            return;
+        }
+
+        try {
+            final RequestMetrics.Sample sample = request.getSample();
+            final XdmNode source = getXmlDocument(message, request, documentCache);
+            if (source == null) {
+                return;
             }
-            final HashCode key = Hashing.crc32().hashString(Joiner.on("").skipNulls().join(xsl,
-                    url_xsl), Charsets.UTF_8);
-            final XsltTransformer xsltTransformer = cacheTransformers.get(key,
-                    new Callable<XsltTransformer>() {
+            sample.lap(RequestMetrics.PARSE);
+            final List<EvaluatorPool<XsltExecutable, XsltTransformer>> pools = new ArrayList<>(stylesheets.size());
+            final List<Map<QName, XdmValue>> stageParams = new ArrayList<>(stylesheets.size());
+            for (Object stylesheet : stylesheets) {
+                final JsonObject stage = (JsonObject) stylesheet;
+                pools.add(getPool(request, stage.getString(XSL), stage.getString(URL_XSL), stage.getString(TEMPLATE),
+                        stage.getString(BASE_URI), stage.getObject(OUTPUT_PROPERTIES)));
+                stageParams.add(getParams(stage.getArray(PARAMS)));
+            }
+            sample.lap(RequestMetrics.COMPILE);
+            final XmlOutput output = XmlOutput.of(request, eventBus, outputDirectory);
+            // the last stylesheet serializes the result, the output properties of the others are unused
+            final JsonObject last = (JsonObject) stylesheets.get(stylesheets.size() - 1);
+            transform(pools, stageParams, source, output.newSerializer(processor, last.getObject(OUTPUT_PROPERTIES)),
+                    request.getTraceListener());
+            sample.lap(RequestMetrics.EVALUATE);
+            sendOutput(message, output);
+            sample.lap(RequestMetrics.SERIALIZE);
+        } catch (SaxonApiException | ExecutionException | IllegalArgumentException | ClassCastException e) {
+            sendError(message, e.getMessage());
+        }
+    }
+
+    /**
+     * Transforms every document of <code>documents</code> with the same stylesheet, in parallel on the
+     * batch threads, and replies the results in the order of the documents. At most one document per batch
+     * thread is submitted at a time, so that the queue of the batch threads is bounded by the requests.
+     */
+    private void handleBatch(Message message, final XmlRequest request) {
+        final JsonObject messageBody = request.body();
+        final JsonArray documents = messageBody.getArray(DOCUMENTS);
+        final JsonArray params = messageBody.getArray(PARAMS);
+        final JsonObject outputProperties = messageBody.getObject(OUTPUT_PROPERTIES);
+
+        if (documents == null) {
+            sendError(message, "documents must be an array");
+            return;
+        }
+        if (request.hasDocument() || messageBody.containsField(XML) || messageBody.containsField(URL_XML)) {
+            sendError(message, "documents either buffer, xml or url_xml must be specified");
+            return;
+        }
+        if (!XmlOutput.MODE_STRING.equals(messageBody.getString(OUTPUT_MODE, XmlOutput.MODE_STRING))) {
+            sendError(message, "documents only support string output_mode");
+            return;
+        }
+
+        final List<Future<JsonObject>> futures = new ArrayList<>(documents.size());
+        try {
+            final EvaluatorPool<XsltExecutable, XsltTransformer> pool = getPool(request, messageBody.getString(XSL),
+                    messageBody.getString(URL_XSL), messageBody.getString(TEMPLATE), messageBody.getString(BASE_URI),
+                    outputProperties);
+            request.getSample().lap(RequestMetrics.COMPILE);
+            final DocumentBuilder builder = getTreeBuilder(messageBody);
+            // params are typed once and shared by the documents, values are immutable
+            final Map<QName, XdmValue> values = getParams(params);
+            final JsonArray results = new JsonArray();
+            for (int i = 0; i < documents.size(); i++) {
+                while (futures.size() < documents.size() && futures.size() - i < batchThreads) {
+                    final Object document = documents.get(futures.size());
+                    futures.add(batchExecutor.submit(new Callable<JsonObject>() {
                         @Override
-                        public XsltTransformer call() throws Exception {
-                            final XsltCompiler xsltCompiler = processor.newXsltCompiler();
-                            final XsltExecutable xsltExecutable = xsltCompiler.compile(xsl_source);
-                            return xsltExecutable.load();
+                        public JsonObject call() {
+                            try {
+                                final XmlOutput output = XmlOutput.ofString();
+                                transform(pool, getDocument(document, builder), values,
+                                        output.newSerializer(processor, outputProperties), request.getTraceListener());
+                                return output.finish().putString("status", "ok");
+                            } catch (SaxonApiException | IllegalArgumentException | ClassCastException e) {
+                                return new JsonObject().putString("status", "error")
+                                        .putString("message", e.getMessage());
+                            }
                         }
-                    });
-            final XdmNode source = processor.newDocumentBuilder().build(xml_source);
-            final StringWriter writer = new StringWriter();
-            final Serializer out = processor.newSerializer(writer);
-            xsltTransformer.setInitialContextNode(source);
-            xsltTransformer.setDestination(out);
-            if (params != null) {
-                for (Object param : params) {
-                    final JsonObject object = (JsonObject) param;
-                    for (String fieldName : object.getFieldNames()) {
-                        xsltTransformer.setParameter(new QName(fieldName), new XdmAtomicValue(object.getString(fieldName)));
-                    }
+                    }));
                 }
+                results.addObject(futures.get(i).get());
             }
-            xsltTransformer.transform();
-            JsonObject outputObject = new JsonObject();
-            outputObject.putString("output", writer.toString());
-            sendOK(message, outputObject);
-        } catch (SaxonApiException | UnsupportedEncodingException | ExecutionException e) {
+            // documents are parsed, transformed and serialized together
+            request.getSample().lap(RequestMetrics.EVALUATE);
+            sendOK(message, new JsonObject().putArray(RESULTS, results));
+            request.getSample().lap(RequestMetrics.SERIALIZE);
+        } catch (InterruptedException e) {
+            // interrupted by the deadline of the request, remaining documents are dropped
+            for (Future<JsonObject> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            sendError(message, "batch interrupted");
+        } catch (SaxonApiException | ExecutionException | IllegalArgumentException e) {
             sendError(message, e.getMessage());
         }
     }
+
+    /**
+     * Returns the tree of a document of a batch: an xml string or an object with <code>xml</code> or
+     * <code>url_xml</code>.
+     */
+    private XdmNode getDocument(Object document, DocumentBuilder builder) throws SaxonApiException {
+        if (document instanceof String) {
+            return builder.build(new StreamSource(new StringReader((String) document)));
+        }
+        final JsonObject object = (JsonObject) document;
+        final String xml = object.getString(XML);
+        final String url_xml = object.getString(URL_XML);
+        if (Strings.isNullOrEmpty(xml) == Strings.isNullOrEmpty(url_xml)) {
+            throw new IllegalArgumentException("xml either url_xml must be specified");
+        }
+        if (!Strings.isNullOrEmpty(xml)) {
+            return builder.build(new StreamSource(new StringReader(xml)));
+        }
+        if (documentCache != null && DocumentCache.accepts(url_xml)) {
+            return documentCache.get(url_xml);
+        }
+        return builder.build(new SAXSource(new InputSource(url_xml)));
+    }
+
+    /**
+     * Returns the pool of a template or of a compiled stylesheet.
+     *
+     * @throws IllegalArgumentException if the template is unknown or the stylesheet is ambiguous
+     */
+    EvaluatorPool<XsltExecutable, XsltTransformer> getPool(final XmlRequest request, final String xsl,
+                                                           final String url_xsl, String template,
+                                                           final String base_uri,
+                                                           JsonObject outputProperties)
+            throws ExecutionException {
+        if (!Strings.isNullOrEmpty(template)) {
+            if (!Strings.isNullOrEmpty(xsl) || !Strings.isNullOrEmpty(url_xsl)) {
+                throw new IllegalArgumentException("template either xsl or url_xsl must be specified");
+            }
+            final EvaluatorPool<XsltExecutable, XsltTransformer> pool = templateRegistry.getXslt(template);
+            if (pool == null) {
+                throw new IllegalArgumentException("unknown xslt template " + template);
+            }
+            return pool;
+        }
+        if (Strings.isNullOrEmpty(xsl) && Strings.isNullOrEmpty(url_xsl)) {
+            throw new IllegalArgumentException("xsl, url_xsl or template must be specified");
+        }
+        if (!Strings.isNullOrEmpty(xsl) && !Strings.isNullOrEmpty(url_xsl)) {
+            throw new IllegalArgumentException("xsl either url_xsl must be specified");
+        }
+        return compilationCache.get(xslKey(xsl, url_xsl, base_uri, outputProperties), xsl,
+                new Callable<EvaluatorPool<XsltExecutable, XsltTransformer>>() {
+                    @Override
+                    public EvaluatorPool<XsltExecutable, XsltTransformer> call() throws Exception {
+                        final Source xsl_source;
+                        final InputStream fetched = request.openFetched(url_xsl);
+                        if (!Strings.isNullOrEmpty(xsl)) {
+                            xsl_source = new StreamSource(new StringReader(xsl), base_uri);
+                        } else if (fetched != null) {
+                            xsl_source = new StreamSource(fetched, url_xsl);
+                        } else {
+                            xsl_source = new SAXSource(new InputSource(url_xsl));
+                        }
+                        final XsltCompiler xsltCompiler = processor.newXsltCompiler();
+                        final XsltExecutable xsltExecutable = xsltCompiler.compile(xsl_source);
+                        return EvaluatorPool.of(xsltExecutable, compilationCache.getPoolSize());
+                    }
+                });
+    }
+
+    @Override
+    String templateOf(JsonObject body) {
+        return body.getString(TEMPLATE, body.getString(URL_XSL));
+    }
+
+    static HashCode xslKey(String xsl, String url_xsl, String base_uri, JsonObject outputProperties) {
+        return CompilationKey.of(CompilationKey.XSLT).source(xsl).url(url_xsl)
+                .baseUri(base_uri).outputProperties(outputProperties).hash();
+    }
+
+    /**
+     * @param out serializer of the result, or tree of the next step of a pipeline
+     * @param traceListener listener aborting the transform when the request times out, null for none
+     */
+    static void transform(EvaluatorPool<XsltExecutable, XsltTransformer> pool, XdmNode source,
+                          Map<QName, XdmValue> params, Destination out, TraceListener traceListener)
+            throws SaxonApiException {
+        final XsltTransformer xsltTransformer = pool.borrow();
+        try {
+            xsltTransformer.setTraceListener(traceListener);
+            xsltTransformer.setInitialContextNode(source);
+            xsltTransformer.setDestination(out);
+            setParameters(xsltTransformer, params);
+            xsltTransformer.transform();
+        } finally {
+            pool.release(xsltTransformer);
+        }
+    }
+
+    /**
+     * Transforms a document with a chain of stylesheets, each with the params of its stage.
+     * A transformer is the destination of the previous one, it builds its source tree from the result events
+     * of the previous stylesheet and starts once they are all received. The transformers of the chain are
+     * borrowed all at once from each pool, in pool order, so that concurrent chains can't wait for each other.
+     */
+    private static void transform(List<EvaluatorPool<XsltExecutable, XsltTransformer>> pools,
+                                  List<Map<QName, XdmValue>> stageParams,
+                                  XdmNode source, Destination out, TraceListener traceListener)
+            throws SaxonApiException {
+        final Map<EvaluatorPool<XsltExecutable, XsltTransformer>, Integer> counts = new TreeMap<>(EvaluatorPool.ORDER);
+        for (EvaluatorPool<XsltExecutable, XsltTransformer> pool : pools) {
+            counts.put(pool, counts.containsKey(pool) ? counts.get(pool) + 1 : 1);
+        }
+        final Map<EvaluatorPool<XsltExecutable, XsltTransformer>, List<XsltTransformer>> borrowed = new HashMap<>();
+        try {
+            for (Map.Entry<EvaluatorPool<XsltExecutable, XsltTransformer>, Integer> count : counts.entrySet()) {
+                borrowed.put(count.getKey(), count.getKey().borrow(count.getValue()));
+            }
+            final Map<EvaluatorPool<XsltExecutable, XsltTransformer>, Iterator<XsltTransformer>> unused =
+                    new HashMap<>();
+            for (Map.Entry<EvaluatorPool<XsltExecutable, XsltTransformer>, List<XsltTransformer>> transformers
+                    : borrowed.entrySet()) {
+                unused.put(transformers.getKey(), transformers.getValue().iterator());
+            }
+            final List<XsltTransformer> transformers = new ArrayList<>(pools.size());
+            for (int i = 0; i < pools.size(); i++) {
+                final XsltTransformer xsltTransformer = unused.get(pools.get(i)).next();
+                transformers.add(xsltTransformer);
+                xsltTransformer.setTraceListener(traceListener);
+                setParameters(xsltTransformer, stageParams.get(i));
+            }
+            for (int i = 0; i < transformers.size(); i++) {
+                transformers.get(i).setDestination(i == transformers.size() - 1 ? out : transformers.get(i + 1));
+            }
+            transformers.get(0).setInitialContextNode(source);
+            transformers.get(0).transform();
+        } finally {
+            for (Map.Entry<EvaluatorPool<XsltExecutable, XsltTransformer>, List<XsltTransformer>> transformers
+                    : borrowed.entrySet()) {
+                transformers.getKey().release(transformers.getValue());
+            }
+        }
+    }
+
+    private static void setParameters(XsltTransformer xsltTransformer, Map<QName, XdmValue> params) {
+        for (Map.Entry<QName, XdmValue> param : params.entrySet()) {
+            xsltTransformer.setParameter(param.getKey(), param.getValue());
+        }
+    }
 }
 
@@ -17,53 +17,119 @@
 package org.etourdot.vertx.mods;
 
 import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
 
-
-import net.sf.saxon.s9api.Processor;
-
-import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonObject;
+import org.w3c.dom.ls.LSResourceResolver;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
-import java.io.ByteArrayInputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
 
 /**
  * XML Module<p> Please see the busmods manual for a full description<p>
- *     entrée: { "xml": source xml ou "xmlurl": url source xml } ou buffer
+ *     entrée: { "xml": source xml ou "xmlurl": url source xml, "xsd"/"url_xsd"/"template": schéma optionnel }
+ *     ou buffer (xml brut ou enveloppe, voir XmlRequest)
  *     sortie: { "status": "ok/ko", "errors": liste erreurs }
  */
 public class XmlValidationHandler extends XmlDefaultHandler {
 
-    public static final String XML = "xml";
-    public static final String URL_XML = "url_xml";
+    public static final String XML = XmlDefaultHandler.XML;
+    public static final String URL_XML = XmlDefaultHandler.URL_XML;
+    public static final String XSD = "xsd";
+    public static final String URL_XSD = "url_xsd";
+    public static final String BASE_URI = "base_uri";
+    public static final String TEMPLATE = "template";
+    public static final String MAX_ERRORS = "max_errors";
+    public static final String FAIL_FAST = "fail_fast";
+    public static final String MAX_REPORT_SIZE = "max_report_size";
+    public static final String TIMEOUT = RequestTimeouts.TIMEOUT;
 
-    private final Processor processor;
+    private final ParserPool parserPool;
+    private final CompilationCache compilationCache;
+    private final TemplateRegistry templateRegistry;
+    private final ResourceResolver resourceResolver;
 
-    public XmlValidationHandler(Processor processor) {
-        this.processor = processor;
+    public XmlValidationHandler(SharedResources resources, ResourceFetcher fetcher,
+                                RequestExecutors.Pool executor) {
+        super(RequestExecutors.VALIDATION, resources, fetcher, executor);
+        this.parserPool = resources.parserPool;
+        this.compilationCache = resources.compilationCache;
+        this.templateRegistry = resources.templateRegistry;
+        this.resourceResolver = resources.resourceResolver;
     }
 
-    public void handle(Message message) {
+    public void handle(final Message message) {
+        final XmlRequest request = newRequest(message);
+        if (request == null) {
+            return;
+        }
+        final JsonObject messageBody = request.body();
+        final String url_xsd = messageBody.getString(URL_XSD);
+        final boolean compiled = !Strings.isNullOrEmpty(messageBody.getString(TEMPLATE))
+                || compilationCache.contains(xsdKey(messageBody.getString(XSD), url_xsd,
+                messageBody.getString(BASE_URI)));
+        fetch(message, request, new Handler<XmlRequest>() {
+            @Override
+            public void handle(XmlRequest request) {
+                process(message, request);
+            }
+        }, request.hasDocument() ? null : messageBody.getString(URL_XML), compiled ? null : url_xsd);
+    }
+
+    private void process(Message message, XmlRequest request) {
         try {
-            final XmlToValidate xmlToValidate = new XmlToValidate(message).invoke();
+            final XmlToValidate xmlToValidate = new XmlToValidate(message, request).invoke();
             if (xmlToValidate.isNotValide()) {
                 return;
             }
-            final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-            saxParserFactory.setNamespaceAware(true);
-            final SAXParser saxParser = saxParserFactory.newSAXParser();
-            final XMLReader xmlReader = saxParser.getXMLReader();
-            xmlReader.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", true);
-            xmlReader.setFeature("http://apache.org/xml/features/validation/dynamic", true);
-            final XmlErrorHandler xmlErrorHandler = new XmlErrorHandler();
-            xmlReader.setErrorHandler(xmlErrorHandler);
-            xmlReader.parse(xmlToValidate.getInputSource());
+            final EvaluatorPool<Schema, Validator> schemaPool = getSchemaPool(request, request.body());
+            request.getSample().lap(RequestMetrics.COMPILE);
+            final XmlErrorHandler xmlErrorHandler = newErrorHandler(xmlToValidate.getBody());
+            final SAXParser saxParser = parserPool.borrow();
+            try {
+                final XMLReader xmlReader = saxParser.getXMLReader();
+                xmlReader.setErrorHandler(xmlErrorHandler);
+                if (resourceResolver != null) {
+                    xmlReader.setEntityResolver(resourceResolver);
+                }
+                if (schemaPool == null) {
+                    xmlReader.parse(xmlToValidate.getInputSource());
+                } else {
+                    final Validator validator = schemaPool.borrow();
+                    try {
+                        validator.setErrorHandler(xmlErrorHandler);
+                        validator.setResourceResolver(resourceResolver);
+                        validator.validate(new SAXSource(xmlReader, xmlToValidate.getInputSource()));
+                    } finally {
+                        schemaPool.release(validator);
+                    }
+                }
+            } catch (SAXException e) {
+                // fatal errors and aborts are already in the report
+                if (!xmlErrorHandler.isReported(e)) {
+                    throw e;
+                }
+            } finally {
+                parserPool.release(saxParser);
+            }
+            // documents are parsed and validated in a single pass
+            request.getSample().lap(schemaPool == null ? RequestMetrics.PARSE : RequestMetrics.EVALUATE);
             if (sendErrorMessage(message, xmlErrorHandler)) {
                 return;
             }
@@ -74,10 +140,89 @@ public class XmlValidationHandler extends XmlDefaultHandler {
         sendOK(message);
     }
 
+    /**
+     * Returns the pool of the schema of a request, or of a step of a pipeline, null when the document
+     * is only checked against its DTD.
+     *
+     * @throws IllegalArgumentException if the template is unknown or the schema is ambiguous
+     */
+    EvaluatorPool<Schema, Validator> getSchemaPool(final XmlRequest request, JsonObject messageBody)
+            throws ExecutionException {
+        final String xsd = messageBody.getString(XSD);
+        final String url_xsd = messageBody.getString(URL_XSD);
+        final String base_uri = messageBody.getString(BASE_URI);
+        final String template = messageBody.getString(TEMPLATE);
+        if (!Strings.isNullOrEmpty(template)) {
+            if (!Strings.isNullOrEmpty(xsd) || !Strings.isNullOrEmpty(url_xsd)) {
+                throw new IllegalArgumentException("template either xsd or url_xsd must be specified");
+            }
+            final EvaluatorPool<Schema, Validator> pool = templateRegistry.getXsd(template);
+            if (pool == null) {
+                throw new IllegalArgumentException("unknown xsd template " + template);
+            }
+            return pool;
+        }
+        if (Strings.isNullOrEmpty(xsd) && Strings.isNullOrEmpty(url_xsd)) {
+            return null;
+        }
+        if (!Strings.isNullOrEmpty(xsd) && !Strings.isNullOrEmpty(url_xsd)) {
+            throw new IllegalArgumentException("xsd either url_xsd must be specified");
+        }
+        return compilationCache.get(xsdKey(xsd, url_xsd, base_uri), xsd, new Callable<EvaluatorPool<Schema, Validator>>() {
+            @Override
+            public EvaluatorPool<Schema, Validator> call() throws Exception {
+                final Source xsd_source;
+                final InputStream fetched = request.openFetched(url_xsd);
+                if (!Strings.isNullOrEmpty(xsd)) {
+                    xsd_source = new StreamSource(new StringReader(xsd), base_uri);
+                } else if (fetched != null) {
+                    xsd_source = new StreamSource(fetched, url_xsd);
+                } else {
+                    xsd_source = new StreamSource(url_xsd);
+                }
+                return EvaluatorPool.of(compile(xsd_source, resourceResolver), compilationCache.getPoolSize());
+            }
+        });
+    }
+
+    /**
+     * @return the error handler of the <code>max_errors</code>, <code>fail_fast</code> and
+     * <code>max_report_size</code> settings of a request
+     */
+    static XmlErrorHandler newErrorHandler(JsonObject body) {
+        return new XmlErrorHandler(
+                body.getBoolean(FAIL_FAST, false) ? 1 : body.getInteger(MAX_ERRORS, XmlErrorHandler.DEFAULT_MAX_ERRORS),
+                body.getInteger(MAX_REPORT_SIZE, XmlErrorHandler.DEFAULT_MAX_REPORT_SIZE));
+    }
+
+    static HashCode xsdKey(String xsd, String url_xsd, String base_uri) {
+        return CompilationKey.of(CompilationKey.XSD).source(xsd).url(url_xsd).baseUri(base_uri).hash();
+    }
+
+    @Override
+    String templateOf(JsonObject body) {
+        return body.getString(TEMPLATE, body.getString(URL_XSD));
+    }
+
+    /**
+     * Compiles a W3C XML schema, the returned schema is thread-safe.
+     *
+     * @param resourceResolver resolver of includes and imports, null for the default one
+     */
+    static Schema compile(Source source, LSResourceResolver resourceResolver) throws SAXException {
+        // schema factories aren't thread-safe, they are only used on cache misses
+        final SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        schemaFactory.setResourceResolver(resourceResolver);
+        return schemaFactory.newSchema(source);
+    }
+
     private boolean sendErrorMessage(Message message, XmlErrorHandler xmlErrorHandler) {
         final String errors = xmlErrorHandler.getErrors();
         if (!Strings.isNullOrEmpty(errors)) {
-            sendError(message, errors);
+            sendStatus("error", message, new JsonObject()
+                    .putString("message", errors)
+                    .putArray("errors", xmlErrorHandler.getErrorArray())
+                    .putBoolean("aborted", xmlErrorHandler.isAborted()));
             return true;
         }
         return false;
@@ -87,10 +232,13 @@ public class XmlValidationHandler extends XmlDefaultHandler {
 
         private boolean myResult;
         private final Message message;
+        private final XmlRequest request;
         private InputSource inputSource;
+        private JsonObject body;
 
-        public XmlToValidate(Message message) {
+        public XmlToValidate(Message message, XmlRequest request) {
             this.message = message;
+            this.request = request;
         }
 
         boolean isNotValide() {
@@ -101,12 +249,16 @@ public class XmlValidationHandler extends XmlDefaultHandler {
             return inputSource;
         }
 
-        public XmlToValidate invoke() throws UnsupportedEncodingException {
-            if (message.body() instanceof Buffer) {
-                final Buffer buffer = (Buffer) message.body();
-                inputSource = new InputSource(new ByteArrayInputStream(buffer.getBytes()));
+        public JsonObject getBody() {
+            return body;
+        }
+
+        public XmlToValidate invoke() {
+            body = request.body();
+            if (request.hasDocument()) {
+                inputSource = new InputSource(request.openDocument());
             } else {
-                final JsonObject jsonObject = ((JsonObject) message.body());
+                final JsonObject jsonObject = request.body();
                 final String xml = jsonObject.getString(XML);
                 final String xmlurl = jsonObject.getString(URL_XML);
                 if (Strings.isNullOrEmpty(xml) && Strings.isNullOrEmpty(xmlurl)) {
@@ -121,9 +273,11 @@ public class XmlValidationHandler extends XmlDefaultHandler {
                         myResult = true;
                         return this;
                     }
-                    inputSource = new InputSource(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+                    inputSource = new InputSource(new StringReader(xml));
                 } else {
-                    inputSource = new InputSource(xmlurl);
+                    final InputStream fetched = request.openFetched(xmlurl);
+                    inputSource = fetched == null ? new InputSource(xmlurl) : new InputSource(fetched);
+                    inputSource.setSystemId(xmlurl);
                 }
             }
             myResult = false;
@@ -16,10 +16,8 @@
 
 package org.etourdot.vertx.mods;
 
-import net.sf.saxon.Configuration;
-import net.sf.saxon.s9api.Processor;
-
 import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.Handler;
 
 /**
  * XML Module<p> Please see the busmods manual for a full description<p>
@@ -30,24 +28,90 @@ public class XmlWorker extends BusModBase {
     public final static String TRANSFORM_ADDRESS = "xmlworker.transform";
     public final static String QUERY_ADDRESS = "xmlworker.query";
     public final static String XPATH_ADDRESS = "xmlworker.xpath";
+    public final static String PIPELINE_ADDRESS = "xmlworker.pipeline";
+    public final static String STATS_ADDRESS = "xmlworker.stats";
+    public final static String METRICS_ADDRESS = "xmlworker.metrics";
+
+    public final static String POOL_SIZE = "pool_size";
+    public final static String COMPILATION_CACHE = "compilation_cache";
+    public final static String TEMPLATES = "templates";
+    public final static String DOCUMENT_CACHE = "document_cache";
+    public final static String OUTPUT_DIRECTORY = "output_directory";
+    public final static String BATCH_THREADS = "batch_threads";
+    public final static String PARSER_POOL = "parser_pool";
+    public final static String TREE = "tree";
+    public final static String RESOURCE_CACHE = "resource_cache";
+    public final static String FETCH = "fetch";
+    public final static String EXECUTORS = "executors";
+    public final static String TIMEOUT = "timeout_ms";
+    public final static String INTERRUPTIBLE = "interruptible";
+    public final static String METRICS = "metrics";
 
-    private Processor processor;
+    private SharedResources resources;
+    private ResourceFetcher fetcher;
+    private long metricsTimer = -1;
 
     @Override
     public void start() {
         super.start();
 
-        Configuration configuration = new Configuration();
-        processor = new Processor(configuration);
-        eb.registerHandler(VALIDATION_ADDRESS, new XmlValidationHandler(processor));
-        eb.registerHandler(TRANSFORM_ADDRESS, new XmlTransformHandler(processor));
-        eb.registerHandler(QUERY_ADDRESS, new XmlQueryHandler(processor));
-        eb.registerHandler(XPATH_ADDRESS, new XmlXPathHandler(processor));
+        try {
+            resources = SharedResources.acquire(config);
+        } catch (TemplateRegistry.TemplateException e) {
+            logger.error("Failed to load templates", e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        if (config.getObject(FETCH) != null) {
+            fetcher = new ResourceFetcher(vertx, config.getObject(FETCH));
+        }
+        // a standard verticle must not block its event loop, it always hands requests to the executors
+        final boolean useExecutors = config.getObject(EXECUTORS) != null || !vertx.isWorker();
+        final XmlValidationHandler validationHandler = new XmlValidationHandler(resources, fetcher,
+                executor(useExecutors, RequestExecutors.VALIDATION));
+        final XmlTransformHandler transformHandler = new XmlTransformHandler(resources, eb, fetcher,
+                executor(useExecutors, RequestExecutors.TRANSFORM));
+        final XmlQueryHandler queryHandler = new XmlQueryHandler(resources, eb, fetcher,
+                executor(useExecutors, RequestExecutors.QUERY));
+        final XmlXPathHandler xpathHandler = new XmlXPathHandler(resources, eb, fetcher,
+                executor(useExecutors, RequestExecutors.XPATH));
+        eb.registerHandler(VALIDATION_ADDRESS, validationHandler);
+        eb.registerHandler(TRANSFORM_ADDRESS, transformHandler);
+        eb.registerHandler(QUERY_ADDRESS, queryHandler);
+        eb.registerHandler(XPATH_ADDRESS, xpathHandler);
+        eb.registerHandler(PIPELINE_ADDRESS, new XmlPipelineHandler(resources, eb, fetcher,
+                executor(useExecutors, RequestExecutors.PIPELINE), validationHandler, transformHandler,
+                queryHandler, xpathHandler));
+        final XmlStatsHandler statsHandler = new XmlStatsHandler(resources);
+        eb.registerHandler(STATS_ADDRESS, statsHandler);
+        final RequestMetrics metrics = resources.metrics;
+        if (metrics.getPublishInterval() > 0) {
+            metricsTimer = vertx.setPeriodic(metrics.getPublishInterval(), new Handler<Long>() {
+                @Override
+                public void handle(Long timerId) {
+                    // metrics are shared by all instances, only one of them publishes them
+                    if (resources.isPublisher(XmlWorker.this)) {
+                        eb.publish(metrics.getAddress(), statsHandler.stats());
+                    }
+                }
+            });
+        }
+    }
+
+    private RequestExecutors.Pool executor(boolean useExecutors, String operation) {
+        return useExecutors ? resources.executors.get(operation) : null;
     }
 
     @Override
     public void stop() {
+        if (fetcher != null) {
+            fetcher.close();
+        }
+        if (metricsTimer != -1) {
+            vertx.cancelTimer(metricsTimer);
+        }
+        if (resources != null) {
+            resources.release(this);
+        }
     }
 
 }
-
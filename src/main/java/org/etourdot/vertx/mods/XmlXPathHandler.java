@@ -16,14 +16,13 @@
 
 package org.etourdot.vertx.mods;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
 
+import net.sf.saxon.event.TreeReceiver;
+import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XPathCompiler;
@@ -31,21 +30,23 @@ import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
 
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
-import org.xml.sax.InputSource;
 
-import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 
+import javax.xml.stream.XMLInputFactory;
 import javax.xml.transform.Source;
-import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.stream.StreamSource;
 
 /**
  * XML Module<p> Please see the busmods manual for a full description<p>
@@ -53,67 +54,298 @@ import javax.xml.transform.stream.StreamSource;
 public class XmlXPathHandler extends XmlDefaultHandler {
 
     public static final String XPATH = "xpath";
-    public static final String XML = "xml";
-    public static final String URL_XML = "url_xml";
+    public static final String XPATHS = "xpaths";
+    public static final String TYPE = "type";
+    public static final String RESULTS = "results";
+    public static final String RESULT_TYPE = XmlDefaultHandler.RESULT_TYPE;
+    public static final String RESULT = XmlDefaultHandler.RESULT;
+    public static final String STREAMING = "streaming";
+    public static final String XML = XmlDefaultHandler.XML;
+    public static final String URL_XML = XmlDefaultHandler.URL_XML;
     public static final String PARAMS = "params";
+    public static final String BASE_URI = "base_uri";
+    public static final String NAMESPACES = "namespaces";
+    public static final String TEMPLATE = "template";
+    public static final String OUTPUT_MODE = XmlOutput.OUTPUT_MODE;
+    public static final String REPLY_ADDRESS = XmlOutput.REPLY_ADDRESS;
+    public static final String CHUNK_SIZE = XmlOutput.CHUNK_SIZE;
+    public static final String OUTPUT_FILE = XmlOutput.OUTPUT_FILE;
+    public static final String TIMEOUT = RequestTimeouts.TIMEOUT;
 
     private final Processor processor;
-    private final Cache<HashCode, XPathSelector> cacheXPathSelector;
+    private final CompilationCache compilationCache;
+    private final DocumentCache documentCache;
+    private final TemplateRegistry templateRegistry;
+    private final EventBus eventBus;
+    private final File outputDirectory;
 
-    public XmlXPathHandler(Processor processor) {
-        this.processor = processor;
-        cacheXPathSelector = CacheBuilder.newBuilder().expireAfterAccess(20, TimeUnit.MINUTES).build();
+    public XmlXPathHandler(SharedResources resources, EventBus eventBus, ResourceFetcher fetcher,
+                           RequestExecutors.Pool executor) {
+        super(RequestExecutors.XPATH, resources, fetcher, executor);
+        this.processor = resources.processor;
+        this.compilationCache = resources.compilationCache;
+        this.documentCache = resources.documentCache;
+        this.templateRegistry = resources.templateRegistry;
+        this.eventBus = eventBus;
+        this.outputDirectory = resources.outputDirectory;
     }
 
-    public void handle(Message message) {
-        final JsonObject messageBody = (JsonObject) message.body();
+    public void handle(final Message message) {
+        final XmlRequest request = newRequest(message);
+        if (request == null) {
+            return;
+        }
+        fetch(message, request, new Handler<XmlRequest>() {
+            @Override
+            public void handle(XmlRequest request) {
+                process(message, request);
+            }
+        }, isCached(documentCache, request) ? null : request.body().getString(URL_XML));
+    }
+
+    private void process(Message message, XmlRequest request) {
+        final JsonObject messageBody = request.body();
         final String xpath = messageBody.getString(XPATH);
         final String xml = messageBody.getString(XML);
         final String url_xml = messageBody.getString(URL_XML);
-        //final JsonArray params = messageBody.getArray(PARAMS);
+        final JsonArray params = messageBody.getArray(PARAMS);
+        final String base_uri = messageBody.getString(BASE_URI);
+        final JsonObject namespaces = messageBody.getObject(NAMESPACES);
+        final String template = messageBody.getString(TEMPLATE);
 
-        if (Strings.isNullOrEmpty(xml) && Strings.isNullOrEmpty(url_xml)) {
+        if (!request.hasDocument() && Strings.isNullOrEmpty(xml) && Strings.isNullOrEmpty(url_xml)) {
             sendError(message, "xml ou url_xml must be specified");
             return;
         }
-        if (Strings.isNullOrEmpty(xpath)) {
-            sendError(message, "xpath must be specified");
+        if (messageBody.containsField(XPATHS)) {
+            handleBatch(message, request);
+            return;
+        }
+        if (Strings.isNullOrEmpty(xpath) && Strings.isNullOrEmpty(template)) {
+            sendError(message, "xpath or template must be specified");
             return;
         }
 
         try {
-            final Source xml_source;
-            if (!Strings.isNullOrEmpty(xml)) {
-                if (!Strings.isNullOrEmpty(url_xml)) {
-                    sendError(message, "xml either url_xml must be specified");
+            final RequestMetrics.Sample sample = request.getSample();
+            final ResultType resultType = resultType(messageBody);
+            if (messageBody.getBoolean(STREAMING, false) && Strings.isNullOrEmpty(template) && namespaces == null
+                    && Strings.isNullOrEmpty(base_uri) && params == null) {
+                // xpaths outside of the streamable subset, or depending on a static context, are evaluated
+                // on the tree of the document
+                final StreamingXPath streamingXPath = StreamingXPath.compile(xpath);
+                final XMLInputFactory inputFactory = getInputFactory(messageBody);
+                if (streamingXPath != null && inputFactory != null
+                        && (resultType != null || !streamingXPath.selectsAttributes())) {
+                    stream(message, request, streamingXPath, inputFactory, resultType);
                     return;
                 }
-                xml_source = new StreamSource(new ByteArrayInputStream(xml.getBytes("UTF-8")));
-            } else {
-                xml_source = new SAXSource(new InputSource(url_xml));
             }
-            final HashCode key = Hashing.crc32().hashString(xpath, Charsets.UTF_8);
-            final XPathSelector xPathSelector = cacheXPathSelector.get(key,
-                    new Callable<XPathSelector>() {
-                        @Override
-                        public XPathSelector call() throws Exception {
-                            final XPathCompiler xPathCompiler = processor.newXPathCompiler();
-                            final XPathExecutable xPathExecutable = xPathCompiler.compile(xpath);
-                            return xPathExecutable.load();
-                        }
-                    });
-            final XdmNode source = processor.newDocumentBuilder().build(xml_source);
-            xPathSelector.setContextItem(source);
-            final XdmValue xdmValue = xPathSelector.evaluate();
-            final StringWriter writer = new StringWriter();
-            final Serializer out = processor.newSerializer(writer);
+            final XdmNode source = getXmlDocument(message, request, documentCache);
+            if (source == null) {
+                return;
+            }
+            sample.lap(RequestMetrics.PARSE);
+            final EvaluatorPool<XPathExecutable, XPathSelector> pool = getPool(xpath, template, base_uri,
+                    namespaces, params);
+            final Map<QName, XdmValue> values = getParams(params);
+            sample.lap(RequestMetrics.COMPILE);
+            if (resultType != null) {
+                final Object result;
+                final XPathSelector xPathSelector = pool.borrow();
+                try {
+                    xPathSelector.setContextItem(source);
+                    setVariables(xPathSelector, values);
+                    result = resultType.evaluate(processor, xPathSelector);
+                } finally {
+                    pool.release(xPathSelector);
+                }
+                sample.lap(RequestMetrics.EVALUATE);
+                sendOK(message, new JsonObject().putValue(RESULT, result));
+                sample.lap(RequestMetrics.SERIALIZE);
+                return;
+            }
+            final XmlOutput output = XmlOutput.of(request, eventBus, outputDirectory);
+            final XdmValue xdmValue;
+            final XPathSelector xPathSelector = pool.borrow();
+            try {
+                xPathSelector.setContextItem(source);
+                setVariables(xPathSelector, values);
+                xdmValue = xPathSelector.evaluate();
+            } finally {
+                pool.release(xPathSelector);
+            }
+            sample.lap(RequestMetrics.EVALUATE);
+            final Serializer out = output.newSerializer(processor, null);
             out.serializeXdmValue(xdmValue);
-            JsonObject outputObject = new JsonObject();
-            outputObject.putString("output", writer.toString());
-            sendOK(message, outputObject);
-        } catch (SaxonApiException | UnsupportedEncodingException | ExecutionException e) {
+            sendOutput(message, output);
+            sample.lap(RequestMetrics.SERIALIZE);
+        } catch (SaxonApiException | ExecutionException | IllegalArgumentException e) {
             sendError(message, e.getMessage());
         }
     }
-}
 
+    /**
+     * Evaluates a streamable xpath while the document is read, matches are serialized, or mapped to the
+     * result type, as soon as they are found.
+     */
+    private void stream(Message message, XmlRequest request, StreamingXPath xpath, XMLInputFactory inputFactory,
+                        ResultType resultType) throws SaxonApiException {
+        final RequestMetrics.Sample sample = request.getSample();
+        final Source source = getXmlSource(message, request);
+        if (source == null) {
+            return;
+        }
+        sample.lap(RequestMetrics.COMPILE);
+        if (resultType != null) {
+            final ResultType.Mapper mapper = resultType.newMapper(processor);
+            xpath.evaluate(processor, inputFactory, source, new StreamingXPath.Matches() {
+                @Override
+                public boolean match(XdmNode node) throws SaxonApiException {
+                    return mapper.add(node);
+                }
+            });
+            sample.lap(RequestMetrics.EVALUATE);
+            sendOK(message, new JsonObject().putValue(RESULT, mapper.result()));
+            sample.lap(RequestMetrics.SERIALIZE);
+            return;
+        }
+        final XmlOutput output = XmlOutput.of(request, eventBus, outputDirectory);
+        final Serializer out = output.newSerializer(processor, null);
+        final TreeReceiver receiver = new TreeReceiver(out.getReceiver(processor.getUnderlyingConfiguration()));
+        try {
+            receiver.open();
+            xpath.evaluate(processor, inputFactory, source, new StreamingXPath.Matches() {
+                @Override
+                public boolean match(XdmNode node) throws SaxonApiException {
+                    try {
+                        receiver.append(node.getUnderlyingNode(), 0, NodeInfo.ALL_NAMESPACES);
+                    } catch (XPathException e) {
+                        throw new SaxonApiException(e);
+                    }
+                    return true;
+                }
+            });
+            receiver.close();
+        } catch (XPathException e) {
+            throw new SaxonApiException(e);
+        }
+        sample.lap(RequestMetrics.EVALUATE);
+        sendOutput(message, output);
+        sample.lap(RequestMetrics.SERIALIZE);
+    }
+
+    /**
+     * Evaluates every xpath of <code>xpaths</code> against the same parsed document and replies an
+     * object of typed results, keyed like <code>xpaths</code>.
+     */
+    private void handleBatch(Message message, XmlRequest request) {
+        final JsonObject messageBody = request.body();
+        final JsonObject xpaths = messageBody.getObject(XPATHS);
+        final JsonArray params = messageBody.getArray(PARAMS);
+        final String base_uri = messageBody.getString(BASE_URI);
+        final JsonObject namespaces = messageBody.getObject(NAMESPACES);
+
+        if (xpaths == null || xpaths.size() == 0) {
+            sendError(message, "xpaths must be a non empty object");
+            return;
+        }
+        if (messageBody.containsField(XPATH) || messageBody.containsField(TEMPLATE)) {
+            sendError(message, "xpaths either xpath or template must be specified");
+            return;
+        }
+
+        String name = null;
+        try {
+            final RequestMetrics.Sample sample = request.getSample();
+            final XdmNode source = getXmlDocument(message, request, documentCache);
+            if (source == null) {
+                return;
+            }
+            sample.lap(RequestMetrics.PARSE);
+            final Map<QName, XdmValue> values = getParams(params);
+            final JsonObject results = new JsonObject();
+            for (String fieldName : xpaths.getFieldNames()) {
+                name = fieldName;
+                final Object value = xpaths.getValue(name);
+                final JsonObject item = value instanceof JsonObject
+                        ? (JsonObject) value : new JsonObject().putString(XPATH, (String) value);
+                final ResultType type = ResultType.of(item.getString(TYPE, ResultType.STRING.toString()));
+                final EvaluatorPool<XPathExecutable, XPathSelector> pool = getPool(item.getString(XPATH),
+                        item.getString(TEMPLATE), base_uri, namespaces, params);
+                sample.lap(RequestMetrics.COMPILE);
+                final XPathSelector xPathSelector = pool.borrow();
+                try {
+                    xPathSelector.setContextItem(source);
+                    setVariables(xPathSelector, values);
+                    results.putValue(name, type.evaluate(processor, xPathSelector));
+                } finally {
+                    pool.release(xPathSelector);
+                }
+                sample.lap(RequestMetrics.EVALUATE);
+            }
+            sendOK(message, new JsonObject().putObject(RESULTS, results));
+            sample.lap(RequestMetrics.SERIALIZE);
+        } catch (SaxonApiException | ExecutionException | IllegalArgumentException | ClassCastException e) {
+            sendError(message, name == null ? e.getMessage() : "xpath " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the pool of a template or of a compiled xpath.
+     *
+     * @throws IllegalArgumentException if the template is unknown or given with an xpath
+     */
+    EvaluatorPool<XPathExecutable, XPathSelector> getPool(final String xpath, String template,
+                                                          final String base_uri,
+                                                          final JsonObject namespaces,
+                                                          final JsonArray params) throws ExecutionException {
+        if (!Strings.isNullOrEmpty(template)) {
+            if (!Strings.isNullOrEmpty(xpath)) {
+                throw new IllegalArgumentException("template either xpath must be specified");
+            }
+            final EvaluatorPool<XPathExecutable, XPathSelector> pool = templateRegistry.getXPath(template);
+            if (pool == null) {
+                throw new IllegalArgumentException("unknown xpath template " + template);
+            }
+            return pool;
+        }
+        if (Strings.isNullOrEmpty(xpath)) {
+            throw new IllegalArgumentException("xpath or template must be specified");
+        }
+        final HashCode key = CompilationKey.of(CompilationKey.XPATH).source(xpath).baseUri(base_uri)
+                .namespaces(namespaces).parameters(params).hash();
+        return compilationCache.get(key, xpath,
+                new Callable<EvaluatorPool<XPathExecutable, XPathSelector>>() {
+                    @Override
+                    public EvaluatorPool<XPathExecutable, XPathSelector> call() throws Exception {
+                        final XPathExecutable xPathExecutable = compile(processor, xpath, base_uri,
+                                namespaces, paramNames(params));
+                        return EvaluatorPool.of(xPathExecutable, compilationCache.getPoolSize());
+                    }
+                });
+    }
+
+    static void setVariables(XPathSelector xPathSelector, Map<QName, XdmValue> params) throws SaxonApiException {
+        for (Map.Entry<QName, XdmValue> param : params.entrySet()) {
+            xPathSelector.setVariable(param.getKey(), param.getValue());
+        }
+    }
+
+    static XPathExecutable compile(Processor processor, String xpath, String base_uri, JsonObject namespaces,
+                                   Iterable<String> variables) throws SaxonApiException, URISyntaxException {
+        final XPathCompiler xPathCompiler = processor.newXPathCompiler();
+        if (base_uri != null) {
+            xPathCompiler.setBaseURI(new URI(base_uri));
+        }
+        if (namespaces != null) {
+            for (String prefix : namespaces.getFieldNames()) {
+                xPathCompiler.declareNamespace(prefix, namespaces.getString(prefix));
+            }
+        }
+        for (String variable : variables) {
+            xPathCompiler.declareVariable(new QName(variable));
+        }
+        return xPathCompiler.compile(xpath);
+    }
+}
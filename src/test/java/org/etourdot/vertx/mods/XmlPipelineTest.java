@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.etourdot.vertx.mods;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.testtools.JavaClassRunner;
+import org.vertx.testtools.TestVerticle;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertNotNull;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+/**
+ * XML Module Test<p>
+ */
+@RunWith(JavaClassRunner.class)
+public class XmlPipelineTest extends TestVerticle {
+
+    private Logger logger;
+
+    @Override
+    public void start() {
+        initialize();
+        final JsonObject conf = new JsonObject();
+        container.deployModule(System.getProperty("vertx.modulename"), conf,
+                new AsyncResultHandler<String>() {
+                    @Override
+                    public void handle(AsyncResult<String> asyncResult) {
+                        if (asyncResult.failed()) {
+                            container.logger().error(asyncResult.cause());
+                        }
+                        assertTrue(asyncResult.succeeded());
+                        assertNotNull("deploymentID should not be null",
+                                asyncResult.result());
+                        // If deployed correctly then start the tests!
+                        startTests();
+                    }
+                });
+        logger = container.logger();
+    }
+
+    @Test
+    public void testXmlPipeline() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals(6, message.body().getNumber(XmlPipelineHandler.RESULT).intValue());
+                final JsonArray steps = message.body().getArray(XmlPipelineHandler.STEPS);
+                assertEquals(4, steps.size());
+                for (Object step : steps) {
+                    assertEquals("ok", ((JsonObject) step).getString("status"));
+                }
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlPipelineHandler.URL_XML, getClass().getResource(
+                "books_dtd_ok.xml").toURI().toASCIIString());
+        jsonObject.putArray(XmlPipelineHandler.STEPS, new JsonArray()
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "validation"))
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "validation")
+                        .putString(XmlValidationHandler.URL_XSD, getClass().getResource("books.xsd").toURI()
+                                .toASCIIString()))
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "transform")
+                        .putString(XmlTransformHandler.XSL, "<xsl:stylesheet version=\"2.0\" "
+                                + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"><xsl:template match=\"/\">"
+                                + "<titles><xsl:for-each select=\"//TITLE\"><t><xsl:value-of select=\".\"/></t>"
+                                + "</xsl:for-each></titles></xsl:template></xsl:stylesheet>"))
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "xpath")
+                        .putString(XmlXPathHandler.XPATH, "count(/titles/t)")));
+        jsonObject.putString(XmlPipelineHandler.RESULT_TYPE, "number");
+        vertx.eventBus().send(XmlWorker.PIPELINE_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlPipelineInvalid() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertEquals(0, message.body().getNumber("step").intValue());
+                assertTrue(message.body().getArray("errors").size() > 0);
+                assertEquals("error", ((JsonObject) message.body().getArray(XmlPipelineHandler.STEPS).get(0))
+                        .getString("status"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlPipelineHandler.URL_XML, getClass().getResource(
+                "books_dtd_ko.xml").toURI().toASCIIString());
+        jsonObject.putArray(XmlPipelineHandler.STEPS, new JsonArray()
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "validation"))
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "transform")
+                        .putString(XmlTransformHandler.TEMPLATE, "unused")));
+        vertx.eventBus().send(XmlWorker.PIPELINE_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlPipelineFailFast() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertEquals(1, message.body().getNumber("step").intValue());
+                assertTrue(message.body().getBoolean("aborted"));
+                assertEquals(1, message.body().getArray("errors").size());
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlPipelineHandler.XML,
+                "<BOOKLIST><BOOKS><ITEM><TITLE/></ITEM><ITEM/></BOOKS></BOOKLIST>");
+        jsonObject.putArray(XmlPipelineHandler.STEPS, new JsonArray()
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "validation"))
+                .addObject(new JsonObject().putString(XmlPipelineHandler.OPERATION, "validation")
+                        .putString(XmlValidationHandler.URL_XSD, getClass().getResource("books.xsd").toURI()
+                                .toASCIIString())
+                        .putBoolean(XmlValidationHandler.FAIL_FAST, true)));
+        vertx.eventBus().send(XmlWorker.PIPELINE_ADDRESS, jsonObject, replyHandler);
+    }
+}
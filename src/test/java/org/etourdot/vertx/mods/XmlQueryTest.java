@@ -22,6 +22,7 @@ import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.testtools.JavaClassRunner;
@@ -44,6 +45,10 @@ public class XmlQueryTest extends TestVerticle {
     public void start() {
         initialize();
         final JsonObject conf = new JsonObject();
+        conf.putBoolean(XmlWorker.INTERRUPTIBLE, true);
+        // requests run concurrently on the executor threads and share a single evaluator per query
+        conf.putNumber(XmlWorker.POOL_SIZE, 1);
+        conf.putObject(XmlWorker.EXECUTORS, new JsonObject().putNumber("threads", 4));
         container.deployModule(System.getProperty("vertx.modulename"), conf,
                 new AsyncResultHandler<String>() {
                     @Override
@@ -77,5 +82,114 @@ public class XmlQueryTest extends TestVerticle {
         vertx.eventBus().send(XmlWorker.QUERY_ADDRESS, jsonObject, replyHandler);
     }
 
-}
+    @Test
+    public void testXmlQueryResultType() throws Exception {
+        Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                final JsonArray result = message.body().getArray(XmlQueryHandler.RESULT);
+                assertEquals(2L, ((Number) result.get(0)).longValue());
+                assertEquals(true, result.get(1));
+                assertEquals("Pride and Prejudice", result.get(2));
+                assertEquals("<CATEGORY CODE=\"P\" DESC=\"Paperback\"/>", result.get(3));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlQueryHandler.URL_XML, getClass().getResource(
+                "books_standalone_ok.xml").toURI().toASCIIString());
+        jsonObject.putString(XmlQueryHandler.QUERY,
+                "count(//ITEM), //ITEM[1]/@CAT = 'MMP', //ITEM[1]/TITLE/text(), (//CATEGORY)[1]");
+        jsonObject.putString(XmlQueryHandler.RESULT_TYPE, "json");
+        vertx.eventBus().send(XmlWorker.QUERY_ADDRESS, jsonObject, replyHandler);
+    }
 
+    @Test
+    public void testXmlQueryTypedParams() throws Exception {
+        Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals(new JsonArray().addString("3").addString("2014-09-02").addString("3").addString("x"),
+                        message.body().getArray(XmlQueryHandler.RESULT));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlQueryHandler.XML, "<root/>");
+        jsonObject.putString(XmlQueryHandler.QUERY, "declare variable $n as xs:integer external; "
+                + "declare variable $d as xs:date external; declare variable $s external; "
+                + "declare variable $doc as document-node() external; "
+                + "$n + 1, $d + xs:dayTimeDuration('P1D'), count($s), $doc//b/string()");
+        jsonObject.putArray(XmlQueryHandler.PARAMS, new JsonArray()
+                .addObject(new JsonObject().putNumber("n", 2))
+                .addObject(new JsonObject().putObject("d", new JsonObject().putString("type", "date")
+                        .putString("value", "2014-09-01")))
+                .addObject(new JsonObject().putArray("s", new JsonArray().addNumber(1).addString("a").addBoolean(true)))
+                .addObject(new JsonObject().putObject("doc", new JsonObject().putString("type", "document")
+                        .putString("xml", "<a><b>x</b></a>"))));
+        jsonObject.putString(XmlQueryHandler.RESULT_TYPE, "string-list");
+        vertx.eventBus().send(XmlWorker.QUERY_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlQueryPooledEvaluators() throws Exception {
+        final int requests = 8;
+        final int[] replies = new int[1];
+        for (int i = 0; i < requests; i++) {
+            // odd requests have no param, they must fail rather than see the value of a previous use
+            final String expected = i % 2 == 0 ? "p" + i + "-" + i : null;
+            final JsonObject jsonObject = new JsonObject();
+            jsonObject.putString(XmlQueryHandler.XML, "<r>" + i + "</r>");
+            jsonObject.putString(XmlQueryHandler.QUERY, "declare variable $p external; concat($p, '-', string(/r))");
+            if (expected != null) {
+                jsonObject.putArray(XmlQueryHandler.PARAMS, new JsonArray()
+                        .addObject(new JsonObject().putString("p", "p" + i)));
+            }
+            jsonObject.putString(XmlQueryHandler.RESULT_TYPE, "string");
+            vertx.eventBus().send(XmlWorker.QUERY_ADDRESS, jsonObject, new Handler<Message<JsonObject>>() {
+                public void handle(Message<JsonObject> message) {
+                    assertEquals(expected == null ? "error" : "ok", message.body().getString("status"));
+                    assertEquals(expected, message.body().getString(XmlQueryHandler.RESULT));
+                    if (++replies[0] == requests) {
+                        testComplete();
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testXmlQueryTimeout() throws Exception {
+        final Handler<Message<JsonObject>> statsHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                final JsonObject timeouts = message.body().getObject("timeouts");
+                assertEquals(1L, (long) timeouts.getLong("timeouts"));
+                if (timeouts.getLong("aborted") == 1L) {
+                    testComplete();
+                } else {
+                    // the evaluation is aborted at its next instruction, after the reply
+                    final Handler<Message<JsonObject>> self = this;
+                    vertx.setTimer(50, new Handler<Long>() {
+                        public void handle(Long timerId) {
+                            vertx.eventBus().send(XmlWorker.STATS_ADDRESS, new JsonObject(), self);
+                        }
+                    });
+                }
+            }
+        };
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertTrue(message.body().getBoolean("timeout"));
+                assertEquals("timeout after 200 ms", message.body().getString("message"));
+                vertx.eventBus().send(XmlWorker.STATS_ADDRESS, new JsonObject(), statsHandler);
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlQueryHandler.XML, "<root/>");
+        jsonObject.putString(XmlQueryHandler.QUERY,
+                "count(for $a in 1 to 100000, $b in 1 to 100000 return $a * $b)");
+        jsonObject.putNumber(XmlQueryHandler.TIMEOUT, 200);
+        vertx.eventBus().send(XmlWorker.QUERY_ADDRESS, jsonObject, replyHandler);
+    }
+}
@@ -17,6 +17,7 @@
 package org.etourdot.vertx.mods;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
 
 import org.junit.Test;
@@ -24,6 +25,7 @@ import org.junit.runner.RunWith;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
@@ -32,10 +34,13 @@ import org.vertx.testtools.JavaClassRunner;
 import org.vertx.testtools.TestVerticle;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 
 import static org.vertx.testtools.VertxAssert.assertEquals;
 import static org.vertx.testtools.VertxAssert.assertNotNull;
 import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.fail;
 import static org.vertx.testtools.VertxAssert.testComplete;
 
 /**
@@ -50,6 +55,11 @@ public class XmlTransformTest extends TestVerticle {
     public void start() {
         initialize();
         final JsonObject conf = new JsonObject();
+        // requests run concurrently on the executor threads and share a single transformer per stylesheet
+        conf.putNumber(XmlWorker.POOL_SIZE, 1);
+        conf.putObject(XmlWorker.EXECUTORS, new JsonObject().putNumber("threads", 4));
+        conf.putObject(XmlWorker.TEMPLATES, new JsonObject().putObject("xslt", new JsonObject()
+                .putObject("xsl-ok", new JsonObject().putString("resource", "org/etourdot/vertx/mods/xsl_ok.xsl"))));
         container.deployModule(System.getProperty("vertx.modulename"), conf,
                 new AsyncResultHandler<String>() {
                     @Override
@@ -119,5 +129,213 @@ public class XmlTransformTest extends TestVerticle {
         jsonObject.putArray(XmlTransformHandler.PARAMS, params);
         vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
     }
-}
 
+    @Test
+    public void testXmlTransformWithTemplate() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><toto/>",message.body().getString("output"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlTransformHandler.XML, "<root><test>ok</test><okok/></root>");
+        jsonObject.putString(XmlTransformHandler.TEMPLATE, "xsl-ok");
+        vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlTransformWithBufferOutput() throws Exception {
+        final Handler<Message<Buffer>> replyHandler = new Handler<Message<Buffer>>() {
+            public void handle(Message<Buffer> message) {
+                final XmlRequest reply = XmlRequest.of(message);
+                assertEquals("ok", reply.body().getString("status"));
+                try {
+                    assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><toto/>",
+                            CharStreams.toString(new InputStreamReader(reply.openDocument(), Charsets.UTF_8)));
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlTransformHandler.XML, "<root><test>ok</test><okok/></root>");
+        jsonObject.putString(XmlTransformHandler.TEMPLATE, "xsl-ok");
+        jsonObject.putString(XmlTransformHandler.OUTPUT_MODE, "buffer");
+        vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlTransformWithChunkedOutput() throws Exception {
+        final StringBuilder output = new StringBuilder();
+        final int[] pending = {2};
+        vertx.eventBus().registerHandler("test.chunks", new Handler<Message<Buffer>>() {
+            public void handle(Message<Buffer> message) {
+                final XmlRequest chunk = XmlRequest.of(message);
+                try {
+                    output.append(CharStreams.toString(new InputStreamReader(chunk.openDocument(), Charsets.UTF_8)));
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+                if (chunk.body().getBoolean("last", false)) {
+                    assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><toto/>", output.toString());
+                    if (--pending[0] == 0) {
+                        testComplete();
+                    }
+                }
+            }
+        });
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals(5, (int) message.body().getInteger("chunks"));
+                assertEquals(45, (int) message.body().getInteger("bytes"));
+                if (--pending[0] == 0) {
+                    testComplete();
+                }
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlTransformHandler.XML, "<root><test>ok</test><okok/></root>");
+        jsonObject.putString(XmlTransformHandler.TEMPLATE, "xsl-ok");
+        jsonObject.putString(XmlTransformHandler.OUTPUT_MODE, "chunked");
+        jsonObject.putString(XmlTransformHandler.REPLY_ADDRESS, "test.chunks");
+        jsonObject.putNumber(XmlTransformHandler.CHUNK_SIZE, 12);
+        vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlTransformWithChunkedOutputFailure() {
+        final int[] pending = {2};
+        vertx.eventBus().registerHandler("test.chunks.failure", new Handler<Message<Buffer>>() {
+            public void handle(Message<Buffer> message) {
+                final XmlRequest chunk = XmlRequest.of(message);
+                if (chunk.body().getBoolean("last", false)) {
+                    assertTrue(chunk.body().getString("error").contains("failed"));
+                    if (--pending[0] == 0) {
+                        testComplete();
+                    }
+                }
+            }
+        });
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                if (--pending[0] == 0) {
+                    testComplete();
+                }
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlTransformHandler.XML, "<root/>");
+        jsonObject.putString(XmlTransformHandler.XSL,
+                "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:template match=\"/\"><out><xsl:sequence select=\"error((), 'failed')\"/></out>"
+                        + "</xsl:template></xsl:stylesheet>");
+        jsonObject.putString(XmlTransformHandler.OUTPUT_MODE, "chunked");
+        jsonObject.putString(XmlTransformHandler.REPLY_ADDRESS, "test.chunks.failure");
+        vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlTransformChunkedInvalidChunkSize() {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertEquals("chunk_size must be positive", message.body().getString("message"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlTransformHandler.XML, "<root><test>ok</test><okok/></root>");
+        jsonObject.putString(XmlTransformHandler.TEMPLATE, "xsl-ok");
+        jsonObject.putString(XmlTransformHandler.OUTPUT_MODE, "chunked");
+        jsonObject.putString(XmlTransformHandler.REPLY_ADDRESS, "test.chunks.invalid");
+        jsonObject.putNumber(XmlTransformHandler.CHUNK_SIZE, 0);
+        vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlTransformPooledTransformers() throws Exception {
+        final int requests = 8;
+        final int[] replies = new int[1];
+        for (int i = 0; i < requests; i++) {
+            // odd requests have no param, they must see its default value rather than the one of a previous use
+            final String expected = (i % 2 == 0 ? "p" + i : "none") + "-" + i;
+            final JsonObject jsonObject = new JsonObject();
+            jsonObject.putString(XmlTransformHandler.XML, "<r>" + i + "</r>");
+            jsonObject.putString(XmlTransformHandler.XSL, "<xsl:stylesheet version=\"2.0\" "
+                    + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"><xsl:param name=\"p\" select=\"'none'\"/>"
+                    + "<xsl:template match=\"/\"><xsl:value-of select=\"concat($p, '-', /r)\"/></xsl:template>"
+                    + "</xsl:stylesheet>");
+            if (i % 2 == 0) {
+                jsonObject.putArray(XmlTransformHandler.PARAMS, new JsonArray()
+                        .addObject(new JsonObject().putString("p", "p" + i)));
+            }
+            vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, new Handler<Message<JsonObject>>() {
+                public void handle(Message<JsonObject> message) {
+                    assertEquals("ok", message.body().getString("status"));
+                    assertTrue(message.body().getString("output").endsWith(">" + expected));
+                    if (++replies[0] == requests) {
+                        testComplete();
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testXmlTransformBatch() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                final JsonArray results = message.body().getArray("results");
+                assertEquals(3, results.size());
+                assertEquals("ok", ((JsonObject) results.get(0)).getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><toto/>",
+                        ((JsonObject) results.get(0)).getString("output"));
+                assertEquals("error", ((JsonObject) results.get(1)).getString("status"));
+                assertEquals("ok", ((JsonObject) results.get(2)).getString("status"));
+                testComplete();
+            }
+        };
+        final JsonArray documents = new JsonArray();
+        documents.addString("<root><test>ok</test><okok/></root>");
+        documents.addString("<root><test>ok</test>");
+        documents.addObject(new JsonObject().putString(XmlTransformHandler.URL_XML, getClass().getResource(
+                "books_standalone_ok.xml").toURI().toASCIIString()));
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putArray(XmlTransformHandler.DOCUMENTS, documents);
+        jsonObject.putString(XmlTransformHandler.TEMPLATE, "xsl-ok");
+        vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlTransformChain() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><out>toto-b-a</out>",
+                        message.body().getString("output"));
+                testComplete();
+            }
+        };
+        final JsonArray stylesheets = new JsonArray();
+        stylesheets.addObject(new JsonObject().putString(XmlTransformHandler.TEMPLATE, "xsl-ok")
+                .putArray(XmlTransformHandler.PARAMS, new JsonArray().addObject(
+                        new JsonObject().putString("filename", "a"))));
+        stylesheets.addObject(new JsonObject().putString(XmlTransformHandler.XSL,
+                "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:param name=\"suffix\"/><xsl:template match=\"/\">"
+                        + "<out><xsl:value-of select=\"concat(name(*), '-', $suffix, '-', .)\"/></out>"
+                        + "</xsl:template></xsl:stylesheet>")
+                .putArray(XmlTransformHandler.PARAMS, new JsonArray().addObject(
+                        new JsonObject().putString("suffix", "b"))));
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlTransformHandler.XML, "<root/>");
+        jsonObject.putArray(XmlTransformHandler.STYLESHEETS, stylesheets);
+        vertx.eventBus().send(XmlWorker.TRANSFORM_ADDRESS, jsonObject, replyHandler);
+    }
+}
@@ -23,12 +23,14 @@ import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.testtools.JavaClassRunner;
 import org.vertx.testtools.TestVerticle;
 
 import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertFalse;
 import static org.vertx.testtools.VertxAssert.assertNotNull;
 import static org.vertx.testtools.VertxAssert.assertNull;
 import static org.vertx.testtools.VertxAssert.assertTrue;
@@ -46,6 +48,11 @@ public class XmlValidationTest extends TestVerticle {
     public void start() {
         initialize();
         final JsonObject conf = new JsonObject();
+        conf.putObject(XmlWorker.PARSER_POOL, new JsonObject().putNumber("size", 2));
+        conf.putObject(XmlWorker.RESOURCE_CACHE, new JsonObject());
+        conf.putObject(XmlWorker.FETCH, new JsonObject().putNumber("max_size", 1024 * 1024));
+        conf.putObject(XmlWorker.TEMPLATES, new JsonObject().putObject("xsd", new JsonObject()
+                .putObject("books", new JsonObject().putString("resource", "org/etourdot/vertx/mods/books.xsd"))));
         container.deployModule(System.getProperty("vertx.modulename"), conf,
                 new AsyncResultHandler<String>() {
                     @Override
@@ -192,5 +199,148 @@ public class XmlValidationTest extends TestVerticle {
         jsonObject.putString(XmlValidationHandler.URL_XML, this.getClass().getResource("books_standalone_ko.xml").toURI().toASCIIString());
         vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, replyHandler);
     }
-}
 
+    @Test
+    public void testXmlValidationParserPool() throws Exception {
+        final Handler<Message<JsonObject>> statsHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                final JsonObject parserPool = message.body().getObject("parser_pool");
+                assertEquals(2, (int) parserPool.getInteger("size"));
+                assertEquals(0, (int) parserPool.getInteger("in_use"));
+                assertTrue(parserPool.getLong("borrows") >= 2);
+                assertTrue(parserPool.getLong("creations") <= 2);
+                testComplete();
+            }
+        };
+        final Handler<Message<JsonObject>> secondHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                vertx.eventBus().send(XmlWorker.STATS_ADDRESS, new JsonObject(), statsHandler);
+            }
+        };
+        final Handler<Message<JsonObject>> firstHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, new JsonObject().putString(
+                        XmlValidationHandler.XML, "<root/>"), secondHandler);
+            }
+        };
+        vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, new JsonObject().putString(
+                XmlValidationHandler.XML, "<root/>"), firstHandler);
+    }
+
+    @Test
+    public void testXmlValidationXsdOk() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlValidationHandler.URL_XML, getClass().getResource("books_standalone_ok.xml").toURI()
+                .toASCIIString());
+        jsonObject.putString(XmlValidationHandler.URL_XSD, getClass().getResource("books.xsd").toURI()
+                .toASCIIString());
+        vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlValidationXsdTemplateKo() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertTrue(message.body().getString("message").contains("CAT"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlValidationHandler.XML, "<BOOKLIST><BOOKS><ITEM><TITLE/></ITEM></BOOKS></BOOKLIST>");
+        jsonObject.putString(XmlValidationHandler.TEMPLATE, "books");
+        vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlValidationResourceCache() throws Exception {
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlValidationHandler.URL_XML, getClass().getResource("books_dtd_ok.xml").toURI()
+                .toASCIIString());
+        final Handler<Message<JsonObject>> statsHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                final JsonObject resourceCache = message.body().getObject("resource_cache");
+                assertTrue(resourceCache.getLong("size") >= 1);
+                assertTrue(resourceCache.getLong("hits") >= 1);
+                testComplete();
+            }
+        };
+        final Handler<Message<JsonObject>> secondHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                vertx.eventBus().send(XmlWorker.STATS_ADDRESS, new JsonObject(), statsHandler);
+            }
+        };
+        final Handler<Message<JsonObject>> firstHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, secondHandler);
+            }
+        };
+        vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, firstHandler);
+    }
+
+    @Test
+    public void testXmlValidationFailFast() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertTrue(message.body().getBoolean("aborted"));
+                final JsonArray errors = message.body().getArray("errors");
+                assertEquals(1, errors.size());
+                final JsonObject error = errors.get(0);
+                assertEquals("error", error.getString("severity"));
+                assertEquals(1, (int) error.getInteger("line"));
+                assertNotNull(error.getString("message"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlValidationHandler.XML, "<BOOKLIST><BOOKS><ITEM><TITLE/></ITEM><ITEM/></BOOKS></BOOKLIST>");
+        jsonObject.putString(XmlValidationHandler.TEMPLATE, "books");
+        jsonObject.putBoolean(XmlValidationHandler.FAIL_FAST, true);
+        vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlValidationFatalErrorReported() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertFalse(message.body().getBoolean("aborted"));
+                final JsonArray errors = message.body().getArray("errors");
+                assertEquals(1, errors.size());
+                final JsonObject error = errors.get(0);
+                assertEquals("fatal", error.getString("severity"));
+                assertNotNull(error.getString("message"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlValidationHandler.XML, "<root><test>ok<okok/></root></test>");
+        vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlUrlValidationFetchFailure() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertNotNull(message.body().getString("message"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlValidationHandler.URL_XML, getClass().getResource("books_standalone_ok.xml").toURI()
+                .resolve("missing.xml").toASCIIString());
+        vertx.eventBus().send(XmlWorker.VALIDATION_ADDRESS, jsonObject, replyHandler);
+    }
+}
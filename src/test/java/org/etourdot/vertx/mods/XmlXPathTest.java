@@ -21,7 +21,9 @@ import org.junit.runner.RunWith;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.testtools.JavaClassRunner;
@@ -30,6 +32,7 @@ import org.vertx.testtools.TestVerticle;
 
 import static org.vertx.testtools.VertxAssert.assertEquals;
 import static org.vertx.testtools.VertxAssert.assertNotNull;
+import static org.vertx.testtools.VertxAssert.assertNull;
 import static org.vertx.testtools.VertxAssert.assertTrue;
 import static org.vertx.testtools.VertxAssert.testComplete;
 
@@ -45,6 +48,10 @@ public class XmlXPathTest extends TestVerticle {
     public void start() {
         initialize();
         final JsonObject conf = new JsonObject();
+        conf.putObject(XmlWorker.DOCUMENT_CACHE, new JsonObject().putNumber("revalidate_after", 60));
+        conf.putObject(XmlWorker.EXECUTORS, new JsonObject().putNumber("threads", 2)
+                .putObject("xpath", new JsonObject().putNumber("threads", 1).putNumber("queue_size", 10)));
+        conf.putObject(XmlWorker.METRICS, new JsonObject().putNumber("publish_interval_ms", 100));
         container.deployModule(System.getProperty("vertx.modulename"), conf,
                 new AsyncResultHandler<String>() {
                     @Override
@@ -76,5 +83,325 @@ public class XmlXPathTest extends TestVerticle {
         jsonObject.putString(XmlXPathHandler.XPATH, "//ITEM[@CAT='P']/AUTHOR/text()");
         vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
     }
-}
 
+    @Test
+    public void testXmlXPathWithRelativeUrl() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>Jane Austen",message.body().getString("output"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        // relative urls can't be revalidated by the document cache, they are left to the parser
+        jsonObject.putString(XmlXPathHandler.URL_XML,
+                "src/test/resources/org/etourdot/vertx/mods/books_standalone_ok.xml");
+        jsonObject.putString(XmlXPathHandler.XPATH, "//ITEM[@CAT='MMP']/AUTHOR/text()");
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathWithParams() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>Jane Austen",message.body().getString("output"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.URL_XML, getClass().getResource(
+                "books_standalone_ok.xml").toURI().toASCIIString());
+        jsonObject.putString(XmlXPathHandler.XPATH, "//ITEM[@CAT=$cat]/AUTHOR/text()");
+        final JsonArray params = new JsonArray();
+        params.add(new JsonObject().putString("cat", "MMP"));
+        jsonObject.putArray(XmlXPathHandler.PARAMS, params);
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathResultType() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals(new JsonArray().addString("Pride and Prejudice").addString("Jane Austen"),
+                        message.body().getArray(XmlXPathHandler.RESULT));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.URL_XML, getClass().getResource(
+                "books_standalone_ok.xml").toURI().toASCIIString());
+        jsonObject.putString(XmlXPathHandler.XPATH, "//ITEM[@CAT='MMP']/(TITLE, AUTHOR)");
+        jsonObject.putString(XmlXPathHandler.RESULT_TYPE, "string-list");
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathTree() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals(1, message.body().getNumber(XmlXPathHandler.RESULT).intValue());
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.XML, "<a>\n  <b>text</b>\n</a>");
+        jsonObject.putString(XmlXPathHandler.XPATH, "count(//text())");
+        jsonObject.putString(XmlXPathHandler.RESULT_TYPE, "number");
+        jsonObject.putObject(TreeBuilders.TREE, new JsonObject().putString(TreeBuilders.STRIP_WHITESPACE, "all")
+                .putString(TreeBuilders.MODEL, "tiny_condensed"));
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathNumberOfNode() throws Exception {
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.XML, "<root><v>12d</v><w> 1.5E1 </w></root>");
+        jsonObject.putString(XmlXPathHandler.XPATH, "/root/v");
+        jsonObject.putString(XmlXPathHandler.RESULT_TYPE, "number");
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                // not an xs:double, as number() would give NaN
+                assertNull(message.body().getNumber(XmlXPathHandler.RESULT));
+                jsonObject.putString(XmlXPathHandler.XPATH, "/root/w");
+                vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, new Handler<Message<JsonObject>>() {
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        assertEquals(15, message.body().getNumber(XmlXPathHandler.RESULT).intValue());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testXmlXPathTreeWithCachedUrl() throws Exception {
+        final String url = getClass().getResource("books_standalone_ok.xml").toURI().toASCIIString();
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                // whitespace text nodes are stripped, although the document is cached with the module settings
+                assertEquals(22, message.body().getNumber(XmlXPathHandler.RESULT).intValue());
+                testComplete();
+            }
+        };
+        final JsonObject cached = new JsonObject();
+        cached.putString(XmlXPathHandler.URL_XML, url);
+        cached.putString(XmlXPathHandler.XPATH, "count(//text())");
+        cached.putString(XmlXPathHandler.RESULT_TYPE, "number");
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, cached, new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                final JsonObject jsonObject = cached.copy();
+                jsonObject.putObject(TreeBuilders.TREE,
+                        new JsonObject().putString(TreeBuilders.STRIP_WHITESPACE, "all"));
+                vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+            }
+        });
+    }
+
+    @Test
+    public void testXmlXPathStreaming() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>Jane Austen",message.body().getString("output"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.URL_XML, getClass().getResource(
+                "books_standalone_ok.xml").toURI().toASCIIString());
+        jsonObject.putString(XmlXPathHandler.XPATH, "/BOOKLIST/BOOKS/ITEM[@CAT='MMP']/AUTHOR/text()");
+        jsonObject.putBoolean(XmlXPathHandler.STREAMING, true);
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathStreamingResultType() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals(new JsonArray().addString("Jane Austen"), message.body().getArray(XmlXPathHandler.RESULT));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        // the external DTD is loaded while streaming, as when building the tree
+        jsonObject.putString(XmlXPathHandler.URL_XML, getClass().getResource(
+                "books_dtd_ok.xml").toURI().toASCIIString());
+        jsonObject.putString(XmlXPathHandler.XPATH, "/BOOKLIST/BOOKS/ITEM[@CAT='MMP']/AUTHOR/text()");
+        jsonObject.putString(XmlXPathHandler.RESULT_TYPE, "string-list");
+        jsonObject.putBoolean(XmlXPathHandler.STREAMING, true);
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathStreamingWithNamespaces() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><item xmlns=\"urn:test\">a</item>",
+                        message.body().getString("output"));
+                testComplete();
+            }
+        };
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.XML, "<root xmlns=\"urn:test\"><item>a</item></root>");
+        jsonObject.putString(XmlXPathHandler.XPATH, "/root/item");
+        jsonObject.putObject(XmlXPathHandler.NAMESPACES, new JsonObject().putString("", "urn:test"));
+        jsonObject.putBoolean(XmlXPathHandler.STREAMING, true);
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathStreamingNestedMatches() throws Exception {
+        final JsonObject tree = new JsonObject();
+        tree.putString(XmlXPathHandler.XML, "<a><b>1<b>2<c/></b></b><b>3</b></a>");
+        tree.putString(XmlXPathHandler.XPATH, "//b");
+        final JsonObject streaming = tree.copy().putBoolean(XmlXPathHandler.STREAMING, true);
+        final Handler<Message<JsonObject>> listHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals(new JsonArray().addString("12").addString("2").addString("3"),
+                        message.body().getArray(XmlXPathHandler.RESULT));
+                testComplete();
+            }
+        };
+        final Handler<Message<JsonObject>> treeHandler = new Handler<Message<JsonObject>>() {
+            public void handle(final Message<JsonObject> treeMessage) {
+                assertEquals("ok", treeMessage.body().getString("status"));
+                assertTrue(treeMessage.body().getString("output").contains("<b>1<b>2<c/></b></b>"));
+                vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, streaming, new Handler<Message<JsonObject>>() {
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        assertEquals(treeMessage.body().getString("output"), message.body().getString("output"));
+                        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, streaming.copy()
+                                .putString(XmlXPathHandler.RESULT_TYPE, "string-list"), listHandler);
+                    }
+                });
+            }
+        };
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, tree, treeHandler);
+    }
+
+    @Test
+    public void testXmlXPathWithEnvelope() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>ok",message.body().getString("output"));
+                testComplete();
+            }
+        };
+        final JsonObject header = new JsonObject().putString(XmlXPathHandler.XPATH, "/root/test/text()");
+        final Buffer document = new Buffer("<root><test>ok</test><okok/></root>");
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, XmlRequest.envelope(header, document), replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathWithInvalidEnvelope() throws Exception {
+        final Buffer invalidJson = new Buffer().appendBytes(XmlRequest.MAGIC).appendInt(3).appendString("{x:<root/>");
+        final Buffer invalidLength = new Buffer().appendBytes(XmlRequest.MAGIC).appendInt(1000).appendString("{}");
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, invalidJson, new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("error", message.body().getString("status"));
+                assertTrue(message.body().getString("message").startsWith("invalid envelope header"));
+                vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, invalidLength, new Handler<Message<JsonObject>>() {
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("error", message.body().getString("status"));
+                        assertEquals("invalid envelope header length 1000", message.body().getString("message"));
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testXmlXPathWithDocumentCache() throws Exception {
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.URL_XML, getClass().getResource(
+                "books_standalone_ok.xml").toURI().toASCIIString());
+        jsonObject.putString(XmlXPathHandler.XPATH, "count(//ITEM)");
+        final Handler<Message<JsonObject>> statsHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                final JsonObject documentCache = message.body().getObject("document_cache");
+                assertEquals(1, (int) documentCache.getInteger("size"));
+                assertTrue(documentCache.getLong("hits") >= 1);
+                assertEquals(ResourceFetcher.DEFAULT_TIMEOUT,
+                        (long) documentCache.getObject("settings").getLong(DocumentCache.TIMEOUT));
+                final JsonObject executor = message.body().getObject("executors").getObject("xpath");
+                assertEquals("xpath", executor.getString("pool"));
+                assertEquals(1, (int) executor.getInteger("threads"));
+                assertEquals(0L, (long) executor.getLong("rejected"));
+                // the first request is recorded, the single xpath thread processed it before the second one
+                final JsonObject xpathMetrics = message.body().getObject("metrics").getObject("operations")
+                        .getObject("xpath");
+                assertTrue(xpathMetrics.getLong("requests") >= 1);
+                assertTrue(xpathMetrics.getObject("statuses").getLong("ok") >= 1);
+                assertTrue(xpathMetrics.getObject("phases").getObject("parse").getLong("count") >= 1);
+                testComplete();
+            }
+        };
+        final Handler<Message<JsonObject>> secondHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                vertx.eventBus().send(XmlWorker.STATS_ADDRESS, new JsonObject(), statsHandler);
+            }
+        };
+        final Handler<Message<JsonObject>> firstHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, secondHandler);
+            }
+        };
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, firstHandler);
+    }
+
+    @Test
+    public void testXmlXPathBatch() throws Exception {
+        final Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                final JsonObject results = message.body().getObject("results");
+                assertEquals("Jane Austen", results.getString("author"));
+                assertEquals(2, (int) results.getInteger("items"));
+                assertEquals(true, results.getBoolean("paperback"));
+                assertEquals(3, results.getArray("categories").size());
+                assertEquals("<CATEGORY CODE=\"H\" DESC=\"Hard Cover\"/>", results.getArray("categories").get(2));
+                testComplete();
+            }
+        };
+        final JsonObject xpaths = new JsonObject();
+        xpaths.putString("author", "//ITEM[@CAT=$cat]/AUTHOR");
+        xpaths.putObject("items", new JsonObject().putString("xpath", "count(//ITEM)").putString("type", "number"));
+        xpaths.putObject("paperback", new JsonObject().putString("xpath", "//ITEM/@CAT = 'P'")
+                .putString("type", "boolean"));
+        xpaths.putObject("categories", new JsonObject().putString("xpath", "/BOOKLIST/CATEGORIES/CATEGORY")
+                .putString("type", "nodes"));
+        final JsonObject jsonObject = new JsonObject();
+        jsonObject.putString(XmlXPathHandler.URL_XML, getClass().getResource(
+                "books_standalone_ok.xml").toURI().toASCIIString());
+        jsonObject.putObject(XmlXPathHandler.XPATHS, xpaths);
+        jsonObject.putArray(XmlXPathHandler.PARAMS, new JsonArray().addObject(new JsonObject().putString("cat", "MMP")));
+        vertx.eventBus().send(XmlWorker.XPATH_ADDRESS, jsonObject, replyHandler);
+    }
+
+    @Test
+    public void testXmlXPathMetricsPublished() throws Exception {
+        vertx.eventBus().registerHandler(XmlWorker.METRICS_ADDRESS, new Handler<Message<JsonObject>>() {
+            public void handle(Message<JsonObject> message) {
+                vertx.eventBus().unregisterHandler(XmlWorker.METRICS_ADDRESS, this);
+                assertNotNull(message.body().getObject("metrics"));
+                assertNotNull(message.body().getObject("executors"));
+                testComplete();
+            }
+        });
+    }
+}